@@ -0,0 +1,244 @@
+package org.threeveed.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * Writes synthetic emails with the MIME structures found in real mailboxes. Structure, headers and text only depend
+ * on the seed, so two runs of a benchmark work on the same corpus; Message-IDs and MIME boundaries are still unique.
+ *
+ * Usage: EmlCorpusGenerator output_dir number_of_emails [seed] [duplicate_percent]
+ */
+public class EmlCorpusGenerator {
+
+    /**
+     * MIME structure of a generated email.
+     */
+    public enum Kind {
+        /** Single text/plain body. */
+        PLAIN,
+        /** multipart/alternative with a plain and an HTML body. */
+        ALTERNATIVE,
+        /** Plain body with a forwarded message/rfc822 that is itself multipart/alternative. */
+        NESTED,
+        /** Plain body with several text, HTML and binary attachments. */
+        ATTACHMENTS
+    }
+
+    private static final String[] WORDS = {
+        "contract", "invoice", "meeting", "quarter", "revenue", "forecast", "review", "draft", "approval", "budget",
+        "shipment", "delay", "client", "proposal", "schedule", "legal", "audit", "pricing", "supplier", "report",
+        "the", "a", "of", "to", "and", "in", "for", "on", "with", "by", "we", "please", "attached", "regards"
+    };
+    private static final String[] PEOPLE = {
+        "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi", "ivan", "judy"
+    };
+
+    private final Session session = Session.getInstance(new Properties());
+    private final Random random;
+    private final long baseTime = 1489500000000L;
+
+    public EmlCorpusGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: EmlCorpusGenerator output_dir number_of_emails [seed] [duplicate_percent]");
+            System.exit(1);
+        }
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        int duplicatePercent = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        List<File> files = new EmlCorpusGenerator(seed).writeCorpus(new File(args[0]), Integer.parseInt(args[1]),
+                duplicatePercent);
+        System.out.println("Wrote " + files.size() + " emails to " + args[0]);
+    }
+
+    /**
+     * Write a mix of all kinds, 100 emails per subdirectory. A duplicate is a byte copy of an earlier email, as left
+     * behind by the same message sitting in several mailboxes.
+     *
+     * @param dir output directory, created if missing.
+     * @param count number of emails.
+     * @param duplicatePercent share of the emails that are copies of earlier ones.
+     * @return the files written.
+     */
+    public List<File> writeCorpus(File dir, int count, int duplicatePercent) throws MessagingException, IOException {
+        List<File> files = new ArrayList<>(count);
+        List<byte[]> originals = new ArrayList<>();
+        Kind[] kinds = Kind.values();
+        for (int i = 0; i < count; i++) {
+            byte[] email;
+            if (!originals.isEmpty() && random.nextInt(100) < duplicatePercent) {
+                email = originals.get(random.nextInt(originals.size()));
+            } else {
+                email = generate(kinds[i % kinds.length]);
+                originals.add(email);
+            }
+
+            File subDir = new File(dir, String.format("box%04d", i / 100));
+            subDir.mkdirs();
+            File file = new File(subDir, String.format("msg%07d.eml", i));
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(email);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * @return a new email of the given kind in RFC 822 form.
+     */
+    public byte[] generate(Kind kind) throws MessagingException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message(kind).writeTo(out);
+        return out.toByteArray();
+    }
+
+    public MimeMessage message(Kind kind) throws MessagingException, IOException {
+        MimeMessage message = headers(new MimeMessage(session));
+        switch (kind) {
+            case PLAIN:
+                message.setText(text(200 + random.nextInt(400)), "UTF-8");
+                break;
+            case ALTERNATIVE:
+                message.setContent(alternative());
+                break;
+            case NESTED: {
+                MimeMultipart mixed = new MimeMultipart("mixed");
+                mixed.addBodyPart(textPart(text(100)));
+                MimeMessage forwarded = headers(new MimeMessage(session));
+                forwarded.setContent(alternative());
+                forwarded.saveChanges();
+                MimeBodyPart rfc822 = new MimeBodyPart();
+                rfc822.setContent(forwarded, "message/rfc822");
+                mixed.addBodyPart(rfc822);
+                message.setContent(mixed);
+                break;
+            }
+            case ATTACHMENTS: {
+                MimeMultipart mixed = new MimeMultipart("mixed");
+                mixed.addBodyPart(textPart(text(80)));
+                int attachments = 2 + random.nextInt(4);
+                for (int i = 0; i < attachments; i++) {
+                    mixed.addBodyPart(attachment(i));
+                }
+                message.setContent(mixed);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException(kind.toString());
+        }
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * @return random prose of the given number of words, broken into lines and paragraphs.
+     */
+    public String text(int words) {
+        StringBuilder text = new StringBuilder(words * 8);
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            if (i % 12 == 11) {
+                text.append(random.nextInt(6) == 0 ? "\n\n" : "\n");
+            } else if (random.nextInt(20) == 0) {
+                text.append(" <").append(PEOPLE[random.nextInt(PEOPLE.length)]).append("@example.com> ");
+            } else {
+                text.append(' ');
+            }
+        }
+        return text.toString();
+    }
+
+    public String html(int words) {
+        StringBuilder html = new StringBuilder("<html><head><title>")
+                .append(WORDS[random.nextInt(WORDS.length)]).append("</title></head><body>");
+        for (String paragraph : text(words).split("\n\n")) {
+            html.append("<p style=\"font-family: Arial\">").append(paragraph.replace("<", "&lt;")
+                    .replace(">", "&gt;").replace("\n", "<br>\n")).append("</p>\n");
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    private MimeMessage headers(MimeMessage message) throws MessagingException {
+        message.setFrom(address());
+        message.setRecipients(Message.RecipientType.TO, new InternetAddress[] {address(), address()});
+        message.setRecipients(Message.RecipientType.CC, new InternetAddress[] {address()});
+        message.setSubject(WORDS[random.nextInt(20)] + " " + WORDS[random.nextInt(20)] + " #" + random.nextInt(10000));
+        message.setSentDate(new Date(baseTime + random.nextInt(365 * 24 * 3600) * 1000L));
+        return message;
+    }
+
+    private InternetAddress address() {
+        String person = PEOPLE[random.nextInt(PEOPLE.length)];
+        try {
+            return new InternetAddress(person + "@example.com", Character.toUpperCase(person.charAt(0))
+                    + person.substring(1));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MimeMultipart alternative() throws MessagingException {
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        String body = text(150 + random.nextInt(300));
+        alternative.addBodyPart(textPart(body));
+        MimeBodyPart html = new MimeBodyPart();
+        html.setText("<html><body><pre>" + body.replace("<", "&lt;") + "</pre></body></html>", "UTF-8", "html");
+        alternative.addBodyPart(html);
+        return alternative;
+    }
+
+    private MimeBodyPart textPart(String text) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setText(text, "UTF-8");
+        return part;
+    }
+
+    private MimeBodyPart attachment(int index) throws MessagingException, IOException {
+        MimeBodyPart part = new MimeBodyPart();
+        String name;
+        ByteArrayDataSource source;
+        switch (random.nextInt(3)) {
+            case 0:
+                name = "notes" + index + ".txt";
+                source = new ByteArrayDataSource(text(500 + random.nextInt(2000)), "text/plain");
+                break;
+            case 1:
+                name = "page" + index + ".html";
+                source = new ByteArrayDataSource(html(500 + random.nextInt(2000)), "text/html");
+                break;
+            default:
+                name = "data" + index + ".bin";
+                byte[] bytes = new byte[4096 + random.nextInt(64 * 1024)];
+                random.nextBytes(bytes);
+                source = new ByteArrayDataSource(bytes, "application/octet-stream");
+                break;
+        }
+        part.setDataHandler(new DataHandler(source));
+        part.setFileName(name);
+        part.setDisposition(Part.ATTACHMENT);
+        return part;
+    }
+}
@@ -0,0 +1,148 @@
+package org.threeveed.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for Solr answering the requests the topology makes: core admin and ping under
+ * /solr/admin, and update requests under /solr/.../update. Update requests are read to the end and then answered
+ * after an injected latency, or failed with a 503 at a configured rate, so the indexing stage can be measured
+ * against a slow or flaky server.
+ */
+public class FakeSolrServer {
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final Random random = new Random();
+    private volatile long latencyMs;
+    private volatile long latencyJitterMs;
+    private volatile double errorRate;
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong updateBytes = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     *
+     * @param threads number of requests served concurrently.
+     */
+    public FakeSolrServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        workers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(workers);
+        server.createContext("/solr/admin", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                drain(exchange.getRequestBody());
+                respond(exchange, 200, "{\"responseHeader\":{\"status\":0}}");
+            }
+        });
+        server.createContext("/solr", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleUpdate(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @param latencyMs time every update request takes at least.
+     * @param jitterMs random extra time, up to this many milliseconds.
+     * @param errorRate share of update requests answered with a 503, from 0 to 1.
+     */
+    public void setFaults(long latencyMs, long jitterMs, double errorRate) {
+        this.latencyMs = latencyMs;
+        this.latencyJitterMs = jitterMs;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @return base URL to hand to the topology as its Solr URL.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    public long getUpdateBytes() {
+        return updateBytes.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public void resetCounters() {
+        updates.set(0);
+        updateBytes.set(0);
+        injectedErrors.set(0);
+    }
+
+    public void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    private void handleUpdate(HttpExchange exchange) throws IOException {
+        long bytes = drain(exchange.getRequestBody());
+        updates.incrementAndGet();
+        updateBytes.addAndGet(bytes);
+
+        long delay;
+        boolean fail;
+        synchronized (random) {
+            delay = latencyMs + (latencyJitterMs > 0 ? (long) (random.nextDouble() * latencyJitterMs) : 0);
+            fail = errorRate > 0 && random.nextDouble() < errorRate;
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (fail) {
+            injectedErrors.incrementAndGet();
+            respond(exchange, 503, "injected failure");
+        } else {
+            respond(exchange, 200, "{\"responseHeader\":{\"status\":0}}");
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        in.close();
+        return total;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
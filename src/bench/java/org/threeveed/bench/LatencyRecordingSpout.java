@@ -0,0 +1,105 @@
+package org.threeveed.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.storm.spout.ISpoutOutputCollector;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.threeveed.spouts.DirectoryReaderSpout;
+
+/**
+ * {@link DirectoryReaderSpout} that records, for every file, the time from its first emit until the topology acked
+ * it. The harness runs the topology in the same JVM, so the samples are kept in static fields it reads directly.
+ */
+public class LatencyRecordingSpout extends DirectoryReaderSpout {
+    private static final long serialVersionUID = 1L;
+
+    private static final Map<Object, Long> emitted = new ConcurrentHashMap<>();
+    private static final AtomicLong acked = new AtomicLong();
+    private static final AtomicLong lastAckNanos = new AtomicLong();
+    private static long[] latencies = new long[1024];
+    private static int latencyCount = 0;
+
+    @Override
+    public void open(Map conf, TopologyContext context, final SpoutOutputCollector collector) {
+        super.open(conf, context, new SpoutOutputCollector(new ISpoutOutputCollector() {
+            @Override
+            public List<Integer> emit(String streamId, List<Object> tuple, Object messageId) {
+                if (messageId != null && !emitted.containsKey(messageId)) {
+                    emitted.put(messageId, System.nanoTime());
+                }
+                return collector.emit(streamId, tuple, messageId);
+            }
+
+            @Override
+            public void emitDirect(int taskId, String streamId, List<Object> tuple, Object messageId) {
+                collector.emitDirect(taskId, streamId, tuple, messageId);
+            }
+
+            @Override
+            public long getPendingCount() {
+                return collector.getPendingCount();
+            }
+
+            @Override
+            public void reportError(Throwable error) {
+                collector.reportError(error);
+            }
+        }));
+    }
+
+    @Override
+    public void ack(Object msgId) {
+        super.ack(msgId);
+        Long start = emitted.remove(msgId);
+        if (start != null) {
+            long now = System.nanoTime();
+            record(now - start);
+            lastAckNanos.set(now);
+            acked.incrementAndGet();
+        }
+    }
+
+    private static synchronized void record(long nanos) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = nanos;
+    }
+
+    /**
+     * Forget everything recorded, before a new run.
+     */
+    public static synchronized void reset() {
+        emitted.clear();
+        acked.set(0);
+        lastAckNanos.set(0);
+        latencyCount = 0;
+    }
+
+    public static long getAcked() {
+        return acked.get();
+    }
+
+    public static long getLastAckNanos() {
+        return lastAckNanos.get();
+    }
+
+    /**
+     * @param percentile from 0 to 100.
+     * @return the latency below which the given share of the acked files stayed, in milliseconds.
+     */
+    public static synchronized double getLatencyMs(double percentile) {
+        if (latencyCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * latencyCount) - 1;
+        return sorted[Math.max(0, Math.min(latencyCount - 1, index))] / 1e6;
+    }
+}
@@ -0,0 +1,133 @@
+package org.threeveed.bench;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.storm.Config;
+import org.apache.storm.LocalCluster;
+import org.apache.storm.generated.KillOptions;
+import org.threeveed.main.StormStart;
+
+/**
+ * End-to-end load test: runs the real topology in a LocalCluster against a {@link FakeSolrServer}, once per bolt
+ * parallelism, over the same synthetic corpus, and prints a table of throughput, per-email latency and heap use.
+ * The knee of the curve is where adding bolts stops adding emails per second and starts adding latency.
+ *
+ * Usage: LoadHarness number_of_emails parallelism[,parallelism...] [solr_latency_ms] [solr_error_percent]
+ * [duplicate_percent]
+ *
+ * The usual -Dthreeveed.* tuning options apply to every run.
+ */
+public class LoadHarness {
+
+    private static final long STALL_TIMEOUT_MS = 60000;
+    private static final long SAMPLE_INTERVAL_MS = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadHarness number_of_emails parallelism[,parallelism...] [solr_latency_ms]"
+                    + " [solr_error_percent] [duplicate_percent]");
+            System.exit(1);
+        }
+        int emails = Integer.parseInt(args[0]);
+        List<Integer> sweep = new ArrayList<>();
+        for (String p : args[1].split(",")) {
+            sweep.add(Integer.parseInt(p.trim()));
+        }
+        long latencyMs = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) / 100 : 0;
+        int duplicatePercent = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        File workDir = new File(System.getProperty("java.io.tmpdir"), "3veed-load-" + System.currentTimeMillis());
+        File corpus = new File(workDir, "corpus");
+        System.out.println("Generating " + emails + " emails in " + corpus);
+        new EmlCorpusGenerator(42).writeCorpus(corpus, emails, duplicatePercent);
+
+        FakeSolrServer solr = new FakeSolrServer(64);
+        solr.setFaults(latencyMs, latencyMs / 2, errorRate);
+        LocalCluster cluster = new LocalCluster();
+
+        List<String> rows = new ArrayList<>();
+        try {
+            for (int parallelism : sweep) {
+                rows.add(run(cluster, solr, corpus, new File(workDir, "checkpoints"), emails, parallelism));
+            }
+        } finally {
+            cluster.shutdown();
+            solr.stop();
+        }
+
+        System.out.println();
+        System.out.println(String.format("Solr latency %d ms, error rate %.1f%%, duplicates %d%%",
+                latencyMs, errorRate * 100, duplicatePercent));
+        System.out.println(String.format("%11s %9s %10s %9s %9s %9s %13s %12s %9s",
+                "parallelism", "emails", "emails/s", "p50 ms", "p99 ms", "max ms", "peak heap MB", "gc time ms",
+                "requests"));
+        for (String row : rows) {
+            System.out.println(row);
+        }
+        System.exit(0);
+    }
+
+    private static String run(LocalCluster cluster, FakeSolrServer solr, File corpus, File checkpoints,
+            int emails, int parallelism) throws Exception {
+        String name = "load-" + parallelism;
+        Config config = StormStart.createConfig(corpus.getPath(), solr.getUrl(), name, "load");
+        config.setDebug(false);
+        config.put("checkpointDir", checkpoints.getPath());
+
+        LatencyRecordingSpout.reset();
+        solr.resetCounters();
+        System.gc();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcStart = gcTimeMs();
+        long peakHeap = memory.getHeapMemoryUsage().getUsed();
+
+        System.out.println("Running with parallelism " + parallelism);
+        long start = System.nanoTime();
+        cluster.submitTopology(name, config,
+                StormStart.createTopology(config, parallelism, new LatencyRecordingSpout()));
+
+        long lastProgress = System.currentTimeMillis();
+        long lastAcked = 0;
+        while (LatencyRecordingSpout.getAcked() < emails) {
+            Thread.sleep(SAMPLE_INTERVAL_MS);
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            long acked = LatencyRecordingSpout.getAcked();
+            if (acked != lastAcked) {
+                lastAcked = acked;
+                lastProgress = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastProgress > STALL_TIMEOUT_MS) {
+                System.out.println("No progress for " + STALL_TIMEOUT_MS / 1000 + "s, " + (emails - acked)
+                        + " emails not acked");
+                break;
+            }
+        }
+        long acked = LatencyRecordingSpout.getAcked();
+        long end = acked > 0 ? LatencyRecordingSpout.getLastAckNanos() : System.nanoTime();
+        double seconds = (end - start) / 1e9;
+        long gcTime = gcTimeMs() - gcStart;
+
+        KillOptions kill = new KillOptions();
+        kill.set_wait_secs(0);
+        cluster.killTopologyWithOpts(name, kill);
+        // give the workers time to shut down before the next run is measured
+        Thread.sleep(5000);
+
+        return String.format("%11d %9d %10.1f %9.1f %9.1f %9.1f %13d %12d %9d", parallelism, acked,
+                acked / seconds, LatencyRecordingSpout.getLatencyMs(50), LatencyRecordingSpout.getLatencyMs(99),
+                LatencyRecordingSpout.getLatencyMs(100), peakHeap / (1024 * 1024), gcTime, solr.getUpdates());
+    }
+
+    private static long gcTimeMs() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,56 @@
+package org.threeveed.bolts;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threeveed.bench.EmlCorpusGenerator;
+
+/**
+ * HTML escaping stage: turning an email body into the escaped, line broken text stored in the index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlEscapeBenchmark {
+
+    /** Body length in words, a short reply and a long report. */
+    @Param({"300", "10000"})
+    public int words;
+
+    private String body;
+    private StringBuilder buffer;
+
+    @Setup
+    public void setUp() {
+        body = new EmlCorpusGenerator(42).text(words);
+        buffer = new StringBuilder();
+    }
+
+    @Benchmark
+    public String prepareContent() {
+        return ThreeVEedEmlBolt.prepareContent(body);
+    }
+
+    /**
+     * Escaping into a reused buffer, as the extraction stage does, without the final copy to a String.
+     */
+    @Benchmark
+    public int appendContent() {
+        buffer.setLength(0);
+        ThreeVEedEmlBolt.appendContent(buffer, body);
+        return buffer.length();
+    }
+}
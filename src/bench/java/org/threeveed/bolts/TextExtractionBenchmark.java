@@ -0,0 +1,82 @@
+package org.threeveed.bolts;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tika.Tika;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.threeveed.bench.EmlCorpusGenerator;
+import org.threeveed.core.BoundedTextHandler;
+
+/**
+ * Tika extraction stage: the text of an HTML body or of an attachment, with the same type hints as
+ * {@link TextExtractionBolt}, collected into one string as before and through the bounded chunking handler the bolt
+ * uses now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextExtractionBenchmark {
+
+    @Param({"text/html", "text/plain"})
+    public String contentType;
+
+    private Tika tika;
+    private BoundedTextHandler handler;
+    private byte[] content;
+    private String name;
+
+    @Setup
+    public void setUp() {
+        tika = new Tika();
+        tika.setMaxStringLength(10 * 1024 * 1024);
+        handler = new BoundedTextHandler(4096, 10 * 1024 * 1024);
+
+        EmlCorpusGenerator generator = new EmlCorpusGenerator(42);
+        boolean html = contentType.equals("text/html");
+        content = (html ? generator.html(2000) : generator.text(2000)).getBytes(StandardCharsets.UTF_8);
+        name = html ? "page.html" : "notes.txt";
+    }
+
+    @Benchmark
+    public String extract() throws Exception {
+        return tika.parseToString(new ByteArrayInputStream(content), TextExtractionBolt.hints(name, contentType));
+    }
+
+    /**
+     * Streaming into 4K chunks, as with extractOversize=split.
+     */
+    @Benchmark
+    public int extractChunked(final Blackhole blackhole) throws Exception {
+        handler.reset(new BoundedTextHandler.ChunkListener() {
+            @Override
+            public void chunk(int index, String text) {
+                blackhole.consume(text);
+            }
+        });
+        Parser parser = tika.getParser();
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, parser);
+        parser.parse(new ByteArrayInputStream(content), new BodyContentHandler(handler),
+                TextExtractionBolt.hints(name, contentType), context);
+        return handler.finish();
+    }
+}
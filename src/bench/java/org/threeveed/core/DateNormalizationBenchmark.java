@@ -0,0 +1,52 @@
+package org.threeveed.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Date normalization stage: turning the sent date into the date and time fields, as done for every email, and
+ * parsing ISO 8601 dates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DateNormalizationBenchmark {
+
+    private static final long SENT = 1489512120000L;
+
+    private long next = SENT;
+
+    /**
+     * Every email sent in the same second, served from the cache.
+     */
+    @Benchmark
+    public DateNormalizer.Normalized normalizeRepeated() {
+        return DateNormalizer.normalize(SENT);
+    }
+
+    /**
+     * Every email sent in a different second.
+     */
+    @Benchmark
+    public DateNormalizer.Normalized normalizeDistinct() {
+        next += 1013000;
+        return DateNormalizer.normalize(next);
+    }
+
+    @Benchmark
+    public long parseIso() {
+        return DateNormalizer.parseIso("2017-03-14T17:22:00+01:00");
+    }
+}
@@ -0,0 +1,90 @@
+package org.threeveed.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.threeveed.bench.EmlCorpusGenerator;
+
+/**
+ * MIME parsing stage: reading an email file into headers, plain body, HTML parts and attachments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmlParserBenchmark {
+
+    @Param({"PLAIN", "ALTERNATIVE", "NESTED", "ATTACHMENTS"})
+    public EmlCorpusGenerator.Kind kind;
+
+    private File file;
+    private EmlParserFactory factory;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = File.createTempFile("bench-" + kind, ".eml");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new EmlCorpusGenerator(42).generate(kind));
+        }
+    }
+
+    @Setup
+    public void setUpFactory() {
+        factory = new EmlParserFactory();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Standalone parser, streaming the file with a shared session.
+     */
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        consume(new EmlParser(file), blackhole);
+    }
+
+    /**
+     * Parser of the factory, as used by the parse stage.
+     */
+    @Benchmark
+    public void parseWithFactory(Blackhole blackhole) throws Exception {
+        consume(factory.parse(file), blackhole);
+    }
+
+    /**
+     * Header-only parse, as a triage stage would use it.
+     */
+    @Benchmark
+    public void parseHeaders(Blackhole blackhole) throws Exception {
+        EmlParser parser = factory.parseHeaders(file);
+        blackhole.consume(parser.getMessageId());
+        blackhole.consume(parser.getFrom());
+        blackhole.consume(parser.getSentDate());
+    }
+
+    private static void consume(EmlParser parser, Blackhole blackhole) {
+        blackhole.consume(parser.getContent());
+        blackhole.consume(parser.getAttachments());
+        blackhole.consume(parser.getContentHash());
+    }
+}
@@ -0,0 +1,82 @@
+package org.threeveed.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threeveed.bench.EmlCorpusGenerator;
+
+/**
+ * Update serialization stage: writing one batch of documents in the wire format posted to Solr. The bytes are counted
+ * and discarded, so only the encoding is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateSerializationBenchmark {
+
+    @Param({UpdateSerializer.FORMAT_XML, UpdateSerializer.FORMAT_JSON, UpdateSerializer.FORMAT_JAVABIN})
+    public String format;
+
+    @Param({"200"})
+    public int batchDocs;
+
+    private UpdateSerializer serializer;
+    private List<DocumentMetadata> batch;
+
+    @Setup
+    public void setUp() {
+        serializer = UpdateSerializer.forFormat(format);
+        EmlCorpusGenerator generator = new EmlCorpusGenerator(42);
+        batch = new ArrayList<>(batchDocs);
+        for (int i = 0; i < batchDocs; i++) {
+            DocumentMetadata doc = new DocumentMetadata();
+            doc.set("id", "SOLRID_bench_" + i);
+            doc.setOriginalPath("/box0000/msg" + i + ".eml");
+            doc.setMessageFrom("Alice <alice@example.com>");
+            doc.setMessageTo("Bob <bob@example.com> , Carol <carol@example.com>");
+            doc.setMessageSubject("quarter report #" + i);
+            doc.setMessageDate("20170314");
+            doc.setCustodian("bench");
+            doc.setDocumentText(generator.text(300));
+            batch.add(doc);
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        serializer.write(batch, out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
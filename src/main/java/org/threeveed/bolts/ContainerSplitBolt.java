@@ -0,0 +1,106 @@
+package org.threeveed.bolts;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeveed.core.MboxSplitter;
+
+import org.apache.storm.metric.api.MultiCountMetric;
+import org.apache.storm.topology.IRichBolt;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+
+/**
+ * Sits between the spout and parsing and breaks containers of many emails into one tuple per email, so the emails of
+ * a huge mailbox spread over all parsing tasks instead of keeping one busy for hours. The spout hands an mbox file
+ * over in byte ranges; a range is only scanned for the boundaries of the messages that start in it here, and each
+ * message is emitted as its file, offset and length, and read by the parsing task that receives it. A single .eml file
+ * passes through with a length of -1, meaning the whole file.
+ *
+ * Message tuples are anchored to their range, which is replayed as a whole if any of its messages fails, and only
+ * that range has to complete within topology.message.timeout.secs.
+ */
+public class ContainerSplitBolt implements IRichBolt {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(ContainerSplitBolt.class);
+    private static final int DEFAULT_METRICS_INTERVAL_SECS = 60;
+
+    private OutputCollector collector;
+    private MultiCountMetric counters;
+
+    @Override
+    public void prepare(Map stormConf, TopologyContext context,
+            OutputCollector collector) {
+        this.collector = collector;
+        counters = context.registerMetric("split", new MultiCountMetric(),
+                Utils.getInt(stormConf.get("metricsIntervalSecs"), DEFAULT_METRICS_INTERVAL_SECS));
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        String fileName = input.getStringByField("file");
+        if (!isMbox(fileName)) {
+            counters.scope("files").incr();
+            collector.emit(input, new Values(fileName, fileName, 0L, -1));
+            collector.ack(input);
+            return;
+        }
+
+        long start = input.getLongByField("offset");
+        long end = start + input.getLongByField("length");
+        int messages = 0;
+        try (MboxSplitter splitter = MboxSplitter.open(new File(fileName), start, end)) {
+            while (splitter.next()) {
+                messages++;
+                if (splitter.getLength() > Integer.MAX_VALUE - 8) {
+                    counters.scope("oversized").incr();
+                    logger.warn("Skipping the message at {} of {}, {} bytes", splitter.getOffset(), fileName,
+                            splitter.getLength());
+                    continue;
+                }
+                collector.emit(input, new Values(fileName, messagePath(fileName, splitter.getOffset()),
+                        splitter.getOffset(), (int) splitter.getLength()));
+            }
+            counters.scope("chunks").incr();
+            counters.scope("messages").incrBy(messages);
+            collector.ack(input);
+        } catch (Exception e) {
+            logger.error("Cannot split " + fileName + " from byte " + start + " after " + messages + " messages", e);
+            collector.fail(input);
+        }
+    }
+
+    static boolean isMbox(String fileName) {
+        return "mbox".equalsIgnoreCase(FilenameUtils.getExtension(fileName));
+    }
+
+    /**
+     * @return the path a message is indexed under: the mbox path followed by the offset of the message in it, which
+     * unlike its number is known without reading the mailbox from the start.
+     */
+    private static String messagePath(String fileName, long offset) {
+        return fileName + File.separator + offset + ".eml";
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("file", "path", "offset", "length"));
+    }
+
+    @Override
+    public void cleanup() {
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+package org.threeveed.bolts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeveed.core.DocumentMetadata;
+import org.threeveed.core.LongLongHashMap;
+
+import org.apache.storm.metric.api.MultiCountMetric;
+import org.apache.storm.topology.IRichBolt;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+
+/**
+ * Sits between parsing and extraction and lets only the first copy of an email, the master, through to Tika. Later
+ * copies are sent straight to indexing on the {@value #DUPLICATE_STREAM} stream as lightweight records, headers only,
+ * whose master_duplicate field holds the content hash of the master.
+ *
+ * Tuples are fields grouped on the content hash, so all copies of an email meet on the same task. They carry the headers
+ * and where the email is stored, no text or part content, so sending every copy here costs little. Every task remembers
+ * the hashes it has seen together with the path of their master, so a replayed master is still treated as the master.
+ * The hashes are kept in memory only: after a restart the first copy seen again becomes the master.
+ */
+public class DeduplicationBolt implements IRichBolt {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(DeduplicationBolt.class);
+    private static final int DEFAULT_EXPECTED_EMAILS = 100000;
+    private static final int DEFAULT_METRICS_INTERVAL_SECS = 60;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public static final String DUPLICATE_STREAM = "duplicate";
+
+    private OutputCollector collector;
+    private LongLongHashMap masters;
+    private long duplicates = 0;
+    private MultiCountMetric counters;
+
+    @Override
+    public void prepare(Map stormConf, TopologyContext context,
+            OutputCollector collector) {
+        this.collector = collector;
+        masters = new LongLongHashMap(Utils.getInt(stormConf.get("dedupExpectedEmails"), DEFAULT_EXPECTED_EMAILS));
+        counters = context.registerMetric("dedup", new MultiCountMetric(),
+                Utils.getInt(stormConf.get("metricsIntervalSecs"), DEFAULT_METRICS_INTERVAL_SECS));
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        DocumentMetadata metadata = (DocumentMetadata) input.getValueByField("document");
+        long hash = input.getLongByField("hash");
+        String masterHash = metadata.getHash();
+
+        long path = pathHash(metadata.getOriginalPath());
+        long master = masterHash == null ? path : masters.putIfAbsent(hash, path, path);
+        if (master == path) {
+            counters.scope("masters").incr();
+            collector.emit(input, new Values(metadata, input.getValueByField("source"), input.getValueByField("parts")));
+        } else {
+            metadata.setMasterDuplicate(masterHash);
+            counters.scope("duplicates").incr();
+            collector.emit(DUPLICATE_STREAM, input, new Values(metadata));
+            if (++duplicates % 1000 == 0) {
+                logger.info("{} duplicates out of {} distinct emails", duplicates, masters.size());
+            }
+        }
+
+        collector.ack(input);
+    }
+
+    /**
+     * 64-bit FNV-1a of the path, so a master is remembered in one long.
+     */
+    private static long pathHash(String path) {
+        long hash = FNV_OFFSET;
+        if (path != null) {
+            for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("document", "source", "parts"));
+        declarer.declareStream(DUPLICATE_STREAM, new Fields("document"));
+    }
+
+    @Override
+    public void cleanup() {
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return null;
+    }
+}
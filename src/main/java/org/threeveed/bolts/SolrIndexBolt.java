@@ -0,0 +1,505 @@
+package org.threeveed.bolts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.threeveed.core.DocumentMetadata;
+import org.threeveed.core.HttpClientPool;
+import org.threeveed.core.IndexSink;
+import org.threeveed.core.IndexSpool;
+import org.threeveed.core.LuceneIndexSink;
+import org.threeveed.core.SolrIndex;
+import org.threeveed.core.SolrIndexRouter;
+import org.threeveed.core.UpdateSerializer;
+import org.threeveed.metrics.ConcurrentCountMetric;
+import org.threeveed.metrics.HistogramMetric;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.storm.metric.api.MultiCountMetric;
+import org.apache.storm.topology.IRichBolt;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.TupleUtils;
+import org.apache.storm.utils.Utils;
+
+/**
+ * Last stage of the topology: batches documents into Solr and acks each tuple once the batch holding it was accepted.
+ *
+ * With several Solr cores or SolrCloud shards (solrShards, solrCloud) every document is routed to its target by id,
+ * and each target is batched and sent on its own. With indexSink=lucene documents go to a Lucene index on the local
+ * disk instead, and are acked once committed.
+ *
+ * With indexSpool=true documents are first appended to an {@link IndexSpool} on the local disk and acked as soon as
+ * the spool is synced, at least every second. A background sender drains the spool into the index, retrying with a
+ * growing delay for as long as the index refuses them, so extraction keeps going through an index outage. When the
+ * spool reaches spoolMaxMb tuples are failed, and replayed by the spout later. The spool lives on the machine of the
+ * task: documents spooled on a machine that is lost for good are lost with it.
+ */
+public class SolrIndexBolt implements IRichBolt {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(SolrIndexBolt.class);
+    private static final int DEFAULT_METRICS_INTERVAL_SECS = 60;
+    private static final int DEFAULT_SPOOL_SYNC_DOCS = 100;
+    
+    private OutputCollector collector;
+    private SolrIndexRouter router;
+    private List<IndexSink> targets;
+    private List<List<Tuple>> pendingTuples;
+    private Deque<PendingBatch> inFlightBatches;
+    private MultiCountMetric counters;
+    private MultiCountMetric failures;
+    private IndexSpool spool;
+    private SpoolSender spoolSender;
+    private Thread spoolSenderThread;
+    private List<Tuple> spooledTuples;
+    private int spoolSyncDocs;
+    
+    @Override
+    public void prepare(Map stormConf, TopologyContext context,
+            OutputCollector collector) {
+        this.collector = collector;
+        
+        // batches are sent on the background sender, so those metrics must be safe to update from there
+        int metricsInterval = Utils.getInt(stormConf.get("metricsIntervalSecs"), DEFAULT_METRICS_INTERVAL_SECS);
+        counters = context.registerMetric("index", new MultiCountMetric(), metricsInterval);
+        failures = context.registerMetric("index-failures", new MultiCountMetric(), metricsInterval);
+        final HistogramMetric sendLatency = context.registerMetric("solr-latency-us", new HistogramMetric(),
+                metricsInterval);
+        final HistogramMetric batchDocs = context.registerMetric("batch-docs", new HistogramMetric(), metricsInterval);
+        final HistogramMetric batchChars = context.registerMetric("batch-chars", new HistogramMetric(),
+                metricsInterval);
+        final ConcurrentCountMetric statuses = context.registerMetric("solr-status", new ConcurrentCountMetric(),
+                metricsInterval);
+        SolrIndex.BatchListener batchListener = new SolrIndex.BatchListener() {
+            @Override
+            public void batchSent(int docs, long chars, int status, long nanos) {
+                sendLatency.record(nanos / 1000);
+                batchDocs.record(docs);
+                batchChars.record(chars);
+                statuses.incr(Integer.toString(status));
+            }
+        };
+        
+        targets = new ArrayList<>();
+        if (isLucene(stormConf)) {
+            try {
+                LuceneIndexSink sink = new LuceneIndexSink(getLuceneIndexDir(stormConf),
+                        Utils.getInt(stormConf.get("luceneRamBufferMb"), LuceneIndexSink.DEFAULT_RAM_BUFFER_MB),
+                        Utils.getInt(stormConf.get("luceneCommitIntervalMs"),
+                                LuceneIndexSink.DEFAULT_COMMIT_INTERVAL_MS));
+                sink.setBatchLimits(
+                        Utils.getInt(stormConf.get("luceneBatchDocs"), LuceneIndexSink.DEFAULT_MAX_BATCH_DOCS),
+                        Utils.getInt(stormConf.get("luceneBatchLingerMs"),
+                                LuceneIndexSink.DEFAULT_MAX_BATCH_LINGER_MS));
+                targets.add(sink);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot open the Lucene index", e);
+            }
+        } else {
+            router = createRouter(stormConf);
+            for (SolrIndex solrIndex : router.getTargets()) {
+                solrIndex.setBatchLimits(
+                        Utils.getInt(stormConf.get("solrBatchDocs"), SolrIndex.DEFAULT_MAX_BATCH_DOCS),
+                        Utils.getInt(stormConf.get("solrBatchBytes"), SolrIndex.DEFAULT_MAX_BATCH_BYTES),
+                        Utils.getInt(stormConf.get("solrBatchLingerMs"),
+                                (int) SolrIndex.DEFAULT_MAX_BATCH_LINGER_MS));
+                solrIndex.setCommitWithin(
+                        Utils.getInt(stormConf.get("solrCommitWithinMs"), SolrIndex.DEFAULT_COMMIT_WITHIN_MS));
+                solrIndex.setUpdateFormat(
+                        Utils.getString(stormConf.get("solrUpdateFormat"), UpdateSerializer.FORMAT_XML));
+                solrIndex.setMaxInFlightBatches(Utils.getInt(stormConf.get("solrMaxInFlightBatches"),
+                        SolrIndex.DEFAULT_MAX_IN_FLIGHT_BATCHES));
+                solrIndex.setBatchListener(batchListener);
+                targets.add(solrIndex);
+            }
+        }
+        
+        pendingTuples = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            pendingTuples.add(new ArrayList<Tuple>());
+        }
+        inFlightBatches = new ArrayDeque<>();
+        
+        if (Utils.getBoolean(stormConf.get("indexSpool"), false)) {
+            File spoolDir = new File(Utils.getString(stormConf.get("spoolDir"), System.getProperty("user.home")
+                    + File.separator + ".3veed" + File.separator + "spool"),
+                    stormConf.get("caseId") + "-" + context.getThisTaskIndex());
+            try {
+                spool = new IndexSpool(spoolDir,
+                        Utils.getInt(stormConf.get("spoolSegmentMb"), IndexSpool.DEFAULT_SEGMENT_MB) * 1024 * 1024,
+                        Utils.getInt(stormConf.get("spoolMaxMb"), IndexSpool.DEFAULT_MAX_MB) * 1024L * 1024);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot open the index spool in " + spoolDir, e);
+            }
+            spooledTuples = new ArrayList<>();
+            spoolSyncDocs = Utils.getInt(stormConf.get("spoolSyncDocs"), DEFAULT_SPOOL_SYNC_DOCS);
+            spoolSender = new SpoolSender(spool, targets, router,
+                    Utils.getInt(stormConf.get("solrBatchDocs"), SolrIndex.DEFAULT_MAX_BATCH_DOCS) * targets.size(),
+                    (long) Utils.getInt(stormConf.get("solrBatchBytes"), SolrIndex.DEFAULT_MAX_BATCH_BYTES)
+                            * targets.size(),
+                    context.registerMetric("spool", new ConcurrentCountMetric(), metricsInterval));
+            spoolSenderThread = new Thread(spoolSender, "index-spool-sender");
+            spoolSenderThread.setDaemon(true);
+            spoolSenderThread.start();
+        }
+    }
+
+    /**
+     * Set up the index of the case, once per topology.
+     *
+     * @param fresh true to empty the index, false to keep its documents and resume.
+     */
+    public static void initCase(Map stormConf, boolean fresh) {
+        if (isLucene(stormConf)) {
+            if (fresh) {
+                LuceneIndexSink.deleteAll(getLuceneIndexDir(stormConf));
+            }
+            return;
+        }
+        createRouter(stormConf).init(fresh);
+    }
+
+    /**
+     * @return the original paths accepted by the filter of the emails of the custodian that are fully indexed, see
+     * {@link SolrIndex#getIndexedPaths(String, SolrIndex.PathFilter)}.
+     */
+    public static Set<String> getIndexedPaths(Map stormConf, String custodian, SolrIndex.PathFilter filter) {
+        if (isLucene(stormConf)) {
+            return LuceneIndexSink.getIndexedPaths(getLuceneIndexDir(stormConf), custodian, filter);
+        }
+        return createRouter(stormConf).getIndexedPaths(custodian, filter);
+    }
+
+    /**
+     * @return the router over the Solr cores or shards of the case, as configured by solrUrl (a comma separated list
+     * of nodes), solrShards and solrCloud.
+     */
+    private static SolrIndexRouter createRouter(Map stormConf) {
+        return new SolrIndexRouter(stormConf.get("solrUrl").toString(), stormConf.get("caseId").toString(),
+                Utils.getInt(stormConf.get("solrShards"), 0), Utils.getBoolean(stormConf.get("solrCloud"), false),
+                getHttpClient(stormConf));
+    }
+
+    /**
+     * @return the shared client of the JVM. Whoever talks to Solr first creates it, the case setup in the submitting
+     * JVM as well as a bolt, so every caller passes the pool settings of the topology.
+     */
+    private static CloseableHttpClient getHttpClient(Map stormConf) {
+        // every Solr node is a route of the pool, with solrMaxConnectionsPerRoute connections of its own
+        return HttpClientPool.getClient(
+                Utils.getInt(stormConf.get("solrMaxConnections"), HttpClientPool.DEFAULT_MAX_CONNECTIONS),
+                Utils.getInt(stormConf.get("solrMaxConnectionsPerRoute"),
+                        HttpClientPool.DEFAULT_MAX_CONNECTIONS_PER_ROUTE),
+                Utils.getInt(stormConf.get("solrConnectTimeoutMs"), HttpClientPool.DEFAULT_CONNECT_TIMEOUT_MS),
+                Utils.getInt(stormConf.get("solrSocketTimeoutMs"), HttpClientPool.DEFAULT_SOCKET_TIMEOUT_MS));
+    }
+
+    private static boolean isLucene(Map stormConf) {
+        return IndexSink.SINK_LUCENE.equals(Utils.getString(stormConf.get("indexSink"), IndexSink.SINK_SOLR));
+    }
+
+    /**
+     * @return luceneIndexDir, by default the case directory under ~/.3veed/index.
+     */
+    private static File getLuceneIndexDir(Map stormConf) {
+        return new File(Utils.getString(stormConf.get("luceneIndexDir"), System.getProperty("user.home")
+                + File.separator + ".3veed" + File.separator + "index" + File.separator + stormConf.get("caseId")));
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        if (spool != null) {
+            if (TupleUtils.isTick(input)) {
+                syncSpool();
+            } else {
+                spool(input);
+            }
+            return;
+        }
+        
+        ackSentBatches(false);
+        
+        if (TupleUtils.isTick(input)) {
+            for (int target = 0; target < targets.size(); target++) {
+                if (targets.get(target).isFlushNeeded()) {
+                    flushPending(target);
+                }
+            }
+            return;
+        }
+        
+        DocumentMetadata metadata = (DocumentMetadata) input.getValueByField("document");
+        int target = router != null ? router.route(metadata.getUniqueId()) : 0;
+        targets.get(target).addData(metadata);
+        pendingTuples.get(target).add(input);
+        
+        if (targets.get(target).isFlushNeeded()) {
+            flushPending(target);
+        }
+    }
+
+    /**
+     * Append the document to the spool. Its tuple is acked by the next {@link #syncSpool()}.
+     */
+    private void spool(Tuple input) {
+        DocumentMetadata metadata = (DocumentMetadata) input.getValueByField("document");
+        try {
+            if (!spool.append(metadata)) {
+                counters.scope("spool-full").incr();
+                collector.fail(input);
+                return;
+            }
+        } catch (IOException e) {
+            logger.error("Cannot spool " + metadata.getOriginalPath(), e);
+            collector.fail(input);
+            return;
+        }
+        spooledTuples.add(input);
+        if (spooledTuples.size() >= spoolSyncDocs) {
+            syncSpool();
+        }
+    }
+
+    /**
+     * Make the spooled documents durable and ack their tuples.
+     */
+    private void syncSpool() {
+        if (spooledTuples.isEmpty()) {
+            return;
+        }
+        spool.sync();
+        for (Tuple tuple : spooledTuples) {
+            collector.ack(tuple);
+        }
+        counters.scope("docs-spooled").incrBy(spooledTuples.size());
+        spooledTuples.clear();
+    }
+
+    /**
+     * Hand the buffered batch of a target to its background sender. Its tuples are acked by
+     * {@link #ackSentBatches(boolean)} once the batch is known to have reached Solr.
+     */
+    private void flushPending(int target) {
+        List<Tuple> pending = pendingTuples.get(target);
+        if (pending.isEmpty()) {
+            return;
+        }
+        
+        List<Tuple> batchTuples = new ArrayList<>(pending);
+        pending.clear();
+        try {
+            inFlightBatches.add(new PendingBatch(targets.get(target).flushAsync(), batchTuples));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Tuple tuple : batchTuples) {
+                collector.fail(tuple);
+            }
+        }
+    }
+
+    /**
+     * Ack (or fail, so the spout can replay them) the tuples of every batch whose send finished, in whatever order
+     * the targets finish. Acks are issued from the executor thread, as the collector expects.
+     *
+     * @param wait block until all batches in flight are done.
+     */
+    private void ackSentBatches(boolean wait) {
+        Iterator<PendingBatch> it = inFlightBatches.iterator();
+        while (it.hasNext()) {
+            PendingBatch batch = it.next();
+            if (!wait && !batch.result.isDone()) {
+                continue;
+            }
+            it.remove();
+            
+            boolean sent = false;
+            try {
+                sent = batch.result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                failures.scope(e.getCause().getClass().getSimpleName()).incr();
+                logger.error("Problem sending a batch of " + batch.tuples.size() + " documents", e.getCause());
+            }
+            
+            for (Tuple tuple : batch.tuples) {
+                if (sent) {
+                    collector.ack(tuple);
+                } else {
+                    collector.fail(tuple);
+                }
+            }
+            counters.scope(sent ? "docs-indexed" : "docs-failed").incrBy(batch.tuples.size());
+            if (!sent && router != null) {
+                // a SolrCloud shard leader may have moved
+                router.refresh();
+            }
+        }
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    }
+
+    @Override
+    public void cleanup() {
+        if (spool != null) {
+            syncSpool();
+            spoolSender.stop();
+            try {
+                spoolSenderThread.join(60000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            spool.close();
+        }
+        for (int target = 0; target < targets.size(); target++) {
+            flushPending(target);
+        }
+        ackSentBatches(true);
+        for (IndexSink sink : targets) {
+            sink.commit();
+            sink.close();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return TupleUtils.putTickFrequencyIntoComponentConfig(null, 1);
+    }
+    
+    /**
+     * Drains the spool into the index, batch by batch. A batch is committed in the spool only once every target
+     * accepted its documents; until then it is sent again, with a delay doubling up to a minute. Documents are
+     * indexed by id, so sending one twice is harmless.
+     */
+    private static final class SpoolSender implements Runnable {
+        private static final long IDLE_MS = 100;
+        private static final long MIN_RETRY_DELAY_MS = 1000;
+        private static final long MAX_RETRY_DELAY_MS = 60000;
+
+        private final IndexSpool spool;
+        private final List<IndexSink> targets;
+        private final SolrIndexRouter router;
+        private final int maxDocs;
+        private final long maxBytes;
+        private final ConcurrentCountMetric counters;
+        private volatile boolean running = true;
+
+        private SpoolSender(IndexSpool spool, List<IndexSink> targets, SolrIndexRouter router, int maxDocs,
+                long maxBytes, ConcurrentCountMetric counters) {
+            this.spool = spool;
+            this.targets = targets;
+            this.router = router;
+            this.maxDocs = maxDocs;
+            this.maxBytes = maxBytes;
+            this.counters = counters;
+        }
+
+        @Override
+        public void run() {
+            long retryDelay = MIN_RETRY_DELAY_MS;
+            List<DocumentMetadata> docs = Collections.emptyList();
+            while (running) {
+                try {
+                    if (docs.isEmpty()) {
+                        docs = spool.read(maxDocs, maxBytes);
+                        if (docs.isEmpty()) {
+                            pause(IDLE_MS);
+                            continue;
+                        }
+                    }
+                    if (deliver(docs)) {
+                        spool.commitRead();
+                        counters.incrBy("docs-indexed", docs.size());
+                        docs = Collections.emptyList();
+                        retryDelay = MIN_RETRY_DELAY_MS;
+                        continue;
+                    }
+                    counters.incr("retries");
+                    if (router != null) {
+                        // a SolrCloud shard leader may have moved
+                        router.refresh();
+                    }
+                } catch (IOException e) {
+                    logger.error("Problem with the index spool", e);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pause(retryDelay);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+            }
+        }
+
+        /**
+         * @return true if every target accepted its share of the documents.
+         */
+        private boolean deliver(List<DocumentMetadata> docs) throws InterruptedException {
+            boolean[] used = new boolean[targets.size()];
+            for (DocumentMetadata doc : docs) {
+                int target = router != null ? router.route(doc.getUniqueId()) : 0;
+                targets.get(target).addData(doc);
+                used[target] = true;
+            }
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int target = 0; target < used.length; target++) {
+                if (used[target]) {
+                    results.add(targets.get(target).flushAsync());
+                }
+            }
+            boolean delivered = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    delivered &= result.get();
+                } catch (ExecutionException e) {
+                    logger.error("Problem sending spooled documents", e);
+                    delivered = false;
+                }
+            }
+            return delivered;
+        }
+
+        private synchronized void pause(long millis) {
+            if (!running) {
+                return;
+            }
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+
+        /**
+         * Stop after the batch being sent, leaving the rest in the spool for the next start.
+         */
+        private synchronized void stop() {
+            running = false;
+            notifyAll();
+        }
+    }
+    
+    private static final class PendingBatch {
+        private final Future<Boolean> result;
+        private final List<Tuple> tuples;
+
+        private PendingBatch(Future<Boolean> result, List<Tuple> tuples) {
+            this.result = result;
+            this.tuples = tuples;
+        }
+    }
+}
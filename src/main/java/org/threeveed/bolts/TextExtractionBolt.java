@@ -0,0 +1,612 @@
+package org.threeveed.bolts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.tika.Tika;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeveed.core.BoundedTextHandler;
+import org.threeveed.core.CappedInputStream;
+import org.threeveed.core.DocumentIds;
+import org.threeveed.core.DocumentMetadata;
+import org.threeveed.core.EmailSource;
+import org.threeveed.core.EmlParser;
+import org.threeveed.core.EmlParserFactory;
+import org.threeveed.core.PartContent;
+import org.threeveed.metrics.HistogramMetric;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.apache.storm.metric.api.MultiCountMetric;
+import org.apache.storm.topology.IRichBolt;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+
+/**
+ * Middle stage of the topology, seeing masters only: reads the text of the email. The plain text body becomes the
+ * email text, followed by the text Tika extracts from the HTML bodies; attachments become child documents. Emits the
+ * attachments followed by the email.
+ *
+ * The text and the parts arrive by reference, so duplicates never carry them: the email is parsed again from its
+ * {@link EmailSource} and every part is decoded straight into Tika, never held in memory as a whole. A part is read up to attachmentMaxBytes (50 MB by default) and
+ * all parts of an email together up to extractEmailMaxBytes (100 MB by default); a part past either limit is indexed
+ * with the text read so far and its processing exception, and the parts after the budget is spent with only the
+ * processing exception.
+ *
+ * Extracted text flows through a {@link BoundedTextHandler} instead of being collected into one string, so memory
+ * stays bounded however large a document is. Text past extractMaxChars (10M characters by default) is truncated, and
+ * the document flagged text_truncated. With extractOversize=split the text is instead cut into chunks of
+ * extractChunkChars (1M by default): the document keeps the first one, every further chunk is indexed as a child
+ * document whose path is the document path followed by #2, #3 and so on, up to extractMaxChars in total. An executor
+ * holds at most two chunks of text at a time, capped together at extractMemoryChars (20M by default).
+ *
+ * Tika runs on a worker thread under a deadline of extractTimeoutMs (20s by default) per part. A part that runs past
+ * it is abandoned together with its worker, which is replaced, and so is one whose parser crashes with anything but a
+ * parse error. Their document is emitted on the {@value ThreeVEedEmlBolt#DEAD_LETTER_STREAM} stream with the
+ * failure as its processing exception, so one pathological file cannot hold up the executor.
+ *
+ * An abandoned parse may keep spinning, as Tika does not always notice the interrupt. Its thread is demoted to the
+ * lowest priority and counted for the whole worker JVM. While more than extractMaxAbandonedThreads (4 by default) of
+ * them are still running, Tika is not run at all: the attachments and HTML bodies of new emails are not extracted, and
+ * the email and its attachments go to the dead letter stream with the reason as their processing exception. Stopping
+ * the JVM is the only way to stop such a thread, and in a local cluster that would end the whole run.
+ */
+public class TextExtractionBolt implements IRichBolt {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(TextExtractionBolt.class);
+    private static final int DEFAULT_METRICS_INTERVAL_SECS = 60;
+    private static final int DEFAULT_MAX_CHARS = 10 * 1024 * 1024;
+    private static final int DEFAULT_CHUNK_CHARS = 1024 * 1024;
+    private static final int DEFAULT_MEMORY_CHARS = 2 * DEFAULT_MAX_CHARS;
+    private static final int DEFAULT_TIMEOUT_MS = 20000;
+    private static final int DEFAULT_MAX_ABANDONED_THREADS = 4;
+    private static final int DEFAULT_ATTACHMENT_MAX_BYTES = 50 * 1024 * 1024;
+    private static final int DEFAULT_EMAIL_MAX_BYTES = 100 * 1024 * 1024;
+    private static final String CHUNK_SEPARATOR = "#";
+    /** Worker threads of every executor in the JVM that were abandoned, running or not. */
+    private static final List<Thread> abandonedThreads = new ArrayList<>();
+    
+    private OutputCollector collector;
+    private Tika tika;
+    private String custodian;
+    private BoundedTextHandler handler;
+    private int chunkChars;
+    private int documentMaxChars;
+    private long timeoutMs;
+    private ExecutorService worker;
+    private Thread workerThread;
+    private int maxAbandonedThreads;
+    private long attachmentMaxBytes;
+    private long emailMaxBytes;
+    private EmlParserFactory parserFactory;
+    /** The email of the tuple being processed, parsed again, or null if that failed. */
+    private EmlParser parser;
+    private Exception parseError;
+    /** Bytes the parts of the email may still be decoded into. */
+    private long remainingBytes;
+    /** Why Tika is not run for the email, or null. */
+    private String suspended;
+    private HistogramMetric extractLatency;
+    private MultiCountMetric counters;
+    private MultiCountMetric failures;
+    
+    @Override
+    public void prepare(Map stormConf, TopologyContext context,
+            OutputCollector collector) {
+        this.collector = collector;
+        
+        tika = new Tika();
+        custodian = stormConf.get("custodian").toString();
+        
+        int maxChars = Utils.getInt(stormConf.get("extractMaxChars"), DEFAULT_MAX_CHARS);
+        int memoryChars = Utils.getInt(stormConf.get("extractMemoryChars"), DEFAULT_MEMORY_CHARS);
+        boolean split = "split".equalsIgnoreCase(String.valueOf(stormConf.get("extractOversize")));
+        // the first chunk of a document is kept until the document is complete, next to the chunk being filled
+        chunkChars = Math.min(split ? Utils.getInt(stormConf.get("extractChunkChars"), DEFAULT_CHUNK_CHARS)
+                : maxChars, memoryChars / 2);
+        documentMaxChars = split ? Math.max(maxChars, chunkChars) : chunkChars;
+        handler = new BoundedTextHandler(chunkChars, documentMaxChars);
+        timeoutMs = Utils.getInt(stormConf.get("extractTimeoutMs"), DEFAULT_TIMEOUT_MS);
+        maxAbandonedThreads = Utils.getInt(stormConf.get("extractMaxAbandonedThreads"), DEFAULT_MAX_ABANDONED_THREADS);
+        worker = newWorker();
+        attachmentMaxBytes = Utils.getInt(stormConf.get("attachmentMaxBytes"), DEFAULT_ATTACHMENT_MAX_BYTES);
+        emailMaxBytes = Utils.getInt(stormConf.get("extractEmailMaxBytes"), DEFAULT_EMAIL_MAX_BYTES);
+        parserFactory = new EmlParserFactory();
+        
+        int metricsInterval = Utils.getInt(stormConf.get("metricsIntervalSecs"), DEFAULT_METRICS_INTERVAL_SECS);
+        extractLatency = context.registerMetric("tika-latency-us", new HistogramMetric(), metricsInterval);
+        counters = context.registerMetric("extract", new MultiCountMetric(), metricsInterval);
+        failures = context.registerMetric("extract-failures", new MultiCountMetric(), metricsInterval);
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        suspendIfOverrun(countRunningAbandonedThreads());
+        
+        DocumentMetadata metadata = (DocumentMetadata) input.getValueByField("document");
+        @SuppressWarnings("unchecked")
+        List<PartContent> parts = (List<PartContent>) input.getValueByField("parts");
+        parseSource((EmailSource) input.getValueByField("source"));
+        remainingBytes = emailMaxBytes;
+        
+        // attachments first, so their text is never buffered together with the text of the email
+        List<String> attachmentNames = new ArrayList<>();
+        for (PartContent part : parts) {
+            if (part.getKind() == PartContent.Kind.ATTACHMENT) {
+                extractAttachment(input, metadata, attachmentNames.size(), part);
+                attachmentNames.add(part.getName());
+            }
+        }
+        
+        DocumentChunks chunks = new DocumentChunks(input, metadata);
+        handler.reset(chunks);
+        String body = null;
+        if (parser != null) {
+            body = ThreeVEedEmlBolt.prepareContent(parser.getContent());
+        } else {
+            metadata.setProcessingException("Cannot parse the email again: " + parseError);
+        }
+        boolean full = body != null && !handler.append(body);
+        // the email lacks the text of its parts as well
+        String crash = parts.isEmpty() ? null : suspended;
+        for (PartContent part : parts) {
+            if (full) {
+                break;
+            }
+            if (part.getKind() == PartContent.Kind.HTML_BODY) {
+                if (suspended != null) {
+                    continue;
+                }
+                try {
+                    CappedInputStream stream = openPart(part);
+                    EscapingHandler escaper = new EscapingHandler(handler);
+                    extract(part, stream, escaper, chunks);
+                    escaper.end();
+                } catch (Exception e) {
+                    if (BoundedTextHandler.isLimitReached(e)) {
+                        full = true;
+                    } else if (isCrash(e)) {
+                        crash = e.toString();
+                        logger.error("Extraction of the HTML body of " + metadata.getOriginalPath() + " failed", e);
+                        if (e instanceof TimeoutException) {
+                            // the text so far went with the abandoned worker, start over from the plain body
+                            chunks = new DocumentChunks(input, metadata);
+                            handler.reset(chunks);
+                            full = body != null && !handler.append(body);
+                        }
+                    } else {
+                        // a body Tika cannot handle only loses its own text
+                        logger.warn("Cannot extract the HTML body of " + metadata.getOriginalPath(), e);
+                    }
+                }
+            }
+        }
+        int count = handler.finish();
+        
+        if (attachmentNames.size() > 0) {
+            StringBuilder text = new StringBuilder(chunks.first);
+            text.append("<br/>=====================================<br/>Attachments:<br/><br/>");
+            for (String name : attachmentNames) {
+                text.append(name).append("<br/>");
+            }
+            metadata.setDocumentText(text.toString());
+        } else {
+            metadata.setDocumentText(chunks.first);
+        }
+        markChunks(metadata, count, handler.isTruncated());
+        
+        if (crash != null) {
+            metadata.setProcessingException(crash);
+            emitDeadLetter(input, metadata);
+        } else {
+            collector.emit(input, new Values(metadata));
+        }
+        collector.ack(input);
+    }
+
+    /**
+     * Extract and emit the child document of an attachment, and its chunks when it is split. One that was too big or
+     * cannot be parsed is indexed with its processing exception, and the text extracted before the failure; one that
+     * timed out or crashed goes to the dead letter stream.
+     */
+    private void extractAttachment(Tuple input, DocumentMetadata parent, int index, PartContent part) {
+        DocumentMetadata child = new DocumentMetadata();
+        child.setUniqueId(DocumentIds.forAttachment(parent.getUniqueId(), index, part.getName()));
+        child.setOriginalPath(parent.getOriginalPath() + File.separator + part.getName());
+        child.setDocumentParent(parent.getOriginalPath());
+        child.setHasParent(true);
+        child.setCustodian(custodian);
+        child.set(Metadata.RESOURCE_NAME_KEY, part.getName());
+        if (part.getContentType() != null) {
+            child.set(Metadata.CONTENT_TYPE, part.getContentType());
+        }
+        
+        if (suspended != null) {
+            child.setProcessingException(suspended);
+            emitDeadLetter(input, child);
+            return;
+        }
+        
+        CappedInputStream stream;
+        try {
+            stream = openPart(part);
+        } catch (Exception e) {
+            failures.scope("UnreadablePart").incr();
+            child.setProcessingException(e.toString());
+            collector.emit(input, new Values(child));
+            return;
+        }
+        
+        DocumentChunks chunks = new DocumentChunks(input, child);
+        handler.reset(chunks);
+        Exception error = null;
+        try {
+            extract(part, stream, handler, chunks);
+        } catch (Exception e) {
+            if (!BoundedTextHandler.isLimitReached(e)) {
+                error = e;
+            }
+        }
+        // after a timeout the handler belongs to the abandoned worker
+        if (!(error instanceof TimeoutException)) {
+            int count = handler.finish();
+            child.setDocumentText(chunks.first);
+            markChunks(child, count, handler.isTruncated());
+        }
+        if (error == null) {
+            collector.emit(input, new Values(child));
+            return;
+        }
+        child.setProcessingException(error.toString());
+        if (isCrash(error)) {
+            logger.error("Extraction of " + child.getOriginalPath() + " failed", error);
+            emitDeadLetter(input, child);
+        } else {
+            collector.emit(input, new Values(child));
+        }
+    }
+    
+    /**
+     * Parse the email of the tuple again, to read its text and parts from.
+     */
+    private void parseSource(EmailSource source) {
+        parser = null;
+        parseError = null;
+        try {
+            parser = source.parse(parserFactory);
+        } catch (Exception e) {
+            failures.scope("UnreadableEmail").incr();
+            logger.warn("Cannot parse " + source + " again", e);
+            parseError = e;
+        }
+    }
+    
+    /**
+     * @return the decoded content of the part, failing once it exceeds the size cap of a part or what is left of the
+     * budget of the email.
+     * @throws IOException if the email could not be parsed again or its budget is spent.
+     */
+    private CappedInputStream openPart(PartContent part) throws Exception {
+        if (parser == null) {
+            throw new IOException("Cannot parse the email again: " + parseError);
+        }
+        if (remainingBytes <= 0) {
+            counters.scope("over-budget").incr();
+            throw new IOException("Email exceeds its extraction budget of " + emailMaxBytes + " bytes");
+        }
+        return new CappedInputStream(part.locate(parser).openStream(), Math.min(attachmentMaxBytes, remainingBytes));
+    }
+    
+    /**
+     * Stop running Tika while too many abandoned threads are still running, and start again once they are done.
+     */
+    private void suspendIfOverrun(int abandoned) {
+        if (abandoned > maxAbandonedThreads) {
+            if (suspended == null) {
+                logger.error("{} abandoned text extraction threads are still running, extraction is suspended",
+                        abandoned);
+            }
+            suspended = "Text extraction suspended, " + abandoned + " abandoned extraction threads are still running";
+            counters.scope("suspended").incr();
+        } else if (suspended != null) {
+            logger.info("Abandoned text extraction threads are down to {}, extraction resumes", abandoned);
+            suspended = null;
+        }
+    }
+    
+    private void emitDeadLetter(Tuple input, DocumentMetadata document) {
+        counters.scope("dead-letters").incr();
+        collector.emit(ThreeVEedEmlBolt.DEAD_LETTER_STREAM, input, new Values(document));
+    }
+    
+    /**
+     * @return true for a timeout or a crash of the parser, false for a file Tika rejects as malformed.
+     */
+    private static boolean isCrash(Exception e) {
+        return e instanceof TimeoutException
+                || !(e instanceof TikaException || e instanceof IOException || e instanceof SAXException);
+    }
+    
+    /**
+     * Extract the text of one MIME part with Tika into the handler, on the worker and within the deadline, recording
+     * its latency, size and failure. The bytes read count against the budget of the email.
+     *
+     * @param stream decoded content of the part, closed once read.
+     * @param chunks receiver of the chunks of the document, cut off if the worker is abandoned.
+     * @throws TimeoutException if the deadline passed.
+     */
+    private void extract(final PartContent part, final CappedInputStream stream, final ContentHandler textHandler,
+            DocumentChunks chunks) throws Exception {
+        counters.scope(part.getKind() == PartContent.Kind.HTML_BODY ? "html-bodies" : "attachments").incr();
+        long start = System.nanoTime();
+        try {
+            Future<Void> result = worker.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Parser parser = tika.getParser();
+                    ParseContext context = new ParseContext();
+                    context.set(Parser.class, parser);
+                    try {
+                        parser.parse(stream, new BodyContentHandler(textHandler),
+                                hints(part.getName(), part.getContentType()), context);
+                    } finally {
+                        stream.close();
+                    }
+                    return null;
+                }
+            });
+            try {
+                result.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                abandonWorker(result, chunks);
+                throw new TimeoutException("Text extraction did not finish within " + timeoutMs + " ms");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        } catch (Exception e) {
+            if (BoundedTextHandler.isLimitReached(e)) {
+                counters.scope("truncated").incr();
+            } else {
+                failures.scope(e.getClass().getSimpleName()).incr();
+            }
+            throw e;
+        } finally {
+            extractLatency.recordSince(start);
+            counters.scope("bytes").incrBy(stream.getBytesRead());
+            remainingBytes -= stream.getBytesRead();
+        }
+    }
+    
+    /**
+     * Give up on a parse that overran its deadline. Tika may not notice the interrupt, so its thread is left to
+     * finish on its own, cut off from the collector, and the worker, the handler it writes to and the parser factory
+     * whose buffer it may still read are replaced.
+     */
+    private void abandonWorker(Future<Void> result, DocumentChunks chunks) {
+        chunks.abandon();
+        result.cancel(true);
+        worker.shutdownNow();
+        if (workerThread != null) {
+            // left to the CPU time nobody else needs
+            workerThread.setPriority(Thread.MIN_PRIORITY);
+            synchronized (abandonedThreads) {
+                abandonedThreads.add(workerThread);
+            }
+        }
+        worker = newWorker();
+        handler = new BoundedTextHandler(chunkChars, documentMaxChars);
+        parserFactory = new EmlParserFactory();
+        counters.scope("abandoned-workers").incr();
+    }
+    
+    /**
+     * @return the number of abandoned worker threads of the JVM that have not finished yet.
+     */
+    private static int countRunningAbandonedThreads() {
+        synchronized (abandonedThreads) {
+            Iterator<Thread> it = abandonedThreads.iterator();
+            while (it.hasNext()) {
+                if (!it.next().isAlive()) {
+                    it.remove();
+                }
+            }
+            return abandonedThreads.size();
+        }
+    }
+    
+    /**
+     * @return a single thread executor, whose thread is remembered in workerThread as it is created on the first
+     * submit from the executor thread.
+     */
+    private ExecutorService newWorker() {
+        workerThread = null;
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "text-extraction-worker");
+                thread.setDaemon(true);
+                workerThread = thread;
+                return thread;
+            }
+        });
+    }
+    
+    private static void markChunks(DocumentMetadata document, int count, boolean truncated) {
+        if (count > 1) {
+            document.setTextChunk(1);
+        }
+        if (truncated) {
+            document.setTextTruncated(true);
+        }
+    }
+    
+    /**
+     * Keeps the first chunk of a document for the document itself and emits every further chunk right away as a
+     * child document, anchored to the email. Chunks arrive on the worker while the executor thread waits for it; once
+     * the worker is abandoned they are refused.
+     */
+    private final class DocumentChunks implements BoundedTextHandler.ChunkListener {
+        private final Tuple input;
+        private final DocumentMetadata document;
+        private String first = "";
+        private boolean abandoned = false;
+        
+        DocumentChunks(Tuple input, DocumentMetadata document) {
+            this.input = input;
+            this.document = document;
+        }
+        
+        synchronized void abandon() {
+            abandoned = true;
+        }
+        
+        @Override
+        public synchronized void chunk(int index, String text) {
+            if (abandoned) {
+                throw new IllegalStateException("extraction of " + document.getOriginalPath() + " was abandoned");
+            }
+            if (index == 0) {
+                first = text;
+                return;
+            }
+            DocumentMetadata chunk = new DocumentMetadata();
+            chunk.setUniqueId(DocumentIds.forChunk(document.getUniqueId(), index + 1));
+            chunk.setOriginalPath(document.getOriginalPath() + CHUNK_SEPARATOR + (index + 1));
+            chunk.setDocumentParent(document.getOriginalPath());
+            chunk.setHasParent(true);
+            chunk.setCustodian(custodian);
+            if (document.get(Metadata.RESOURCE_NAME_KEY) != null) {
+                chunk.set(Metadata.RESOURCE_NAME_KEY, document.get(Metadata.RESOURCE_NAME_KEY));
+            }
+            if (document.get(Metadata.CONTENT_TYPE) != null) {
+                chunk.set(Metadata.CONTENT_TYPE, document.get(Metadata.CONTENT_TYPE));
+            }
+            chunk.setTextChunk(index + 1);
+            chunk.setDocumentText(text);
+            counters.scope("chunks").incr();
+            collector.emit(input, new Values(chunk));
+        }
+    }
+    
+    /**
+     * Escapes HTML body text for display on its way into the email text, exactly as
+     * {@link ThreeVEedEmlBolt#appendContent(StringBuilder, String)} does for a whole string: &lt; and &gt; escaped,
+     * every line ended by a line break and trailing empty lines dropped.
+     */
+    private static final class EscapingHandler extends DefaultHandler {
+        private final BoundedTextHandler out;
+        private final StringBuilder escaped = new StringBuilder();
+        private int pendingBreaks = 0;
+        private boolean sawChars = false;
+        private boolean sawText = false;
+        
+        EscapingHandler(BoundedTextHandler out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            escaped.setLength(0);
+            for (int i = start; i < start + length; i++) {
+                char c = ch[i];
+                sawChars = true;
+                if (c == '\n') {
+                    // only written once text follows, trailing line breaks are dropped
+                    pendingBreaks++;
+                    continue;
+                }
+                for (; pendingBreaks > 0; pendingBreaks--) {
+                    escaped.append(ThreeVEedEmlBolt.LINE_BREAK);
+                }
+                sawText = true;
+                if (c == '<') {
+                    escaped.append("&lt;");
+                } else if (c == '>') {
+                    escaped.append("&gt;");
+                } else {
+                    escaped.append(c);
+                }
+            }
+            write();
+        }
+        
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            characters(ch, start, length);
+        }
+        
+        /**
+         * End the body with a line break, unless it only had empty lines.
+         */
+        void end() throws SAXException {
+            if (sawText || !sawChars) {
+                escaped.setLength(0);
+                escaped.append(ThreeVEedEmlBolt.LINE_BREAK);
+                write();
+            }
+        }
+        
+        private void write() throws SAXException {
+            if (!out.append(escaped)) {
+                throw new BoundedTextHandler.LimitReachedException();
+            }
+        }
+    }
+    
+    /**
+     * @return metadata telling Tika's type detection what the part claims to be.
+     */
+    static Metadata hints(String name, String contentType) {
+        Metadata hints = new Metadata();
+        if (name != null) {
+            hints.set(Metadata.RESOURCE_NAME_KEY, name);
+        }
+        if (contentType != null) {
+            hints.set(Metadata.CONTENT_TYPE, contentType);
+        }
+        return hints;
+    }
+    
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("document"));
+        declarer.declareStream(ThreeVEedEmlBolt.DEAD_LETTER_STREAM, new Fields("document"));
+    }
+
+    @Override
+    public void cleanup() {
+        worker.shutdownNow();
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return null;
+    }
+}
@@ -1,84 +1,119 @@
 package org.threeveed.bolts;
 
-import java.io.File;
-import java.text.SimpleDateFormat;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
 
-import org.apache.tika.Tika;
-import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeveed.core.DateNormalizer;
+import org.threeveed.core.DocumentIds;
 import org.threeveed.core.DocumentMetadata;
+import org.threeveed.core.EmailSource;
+import org.threeveed.core.EmlAttachment;
 import org.threeveed.core.EmlParser;
-import org.threeveed.core.SolrIndex;
+import org.threeveed.core.EmlParserFactory;
+import org.threeveed.core.PartContent;
+import org.threeveed.metrics.HistogramMetric;
 
 
+import org.apache.storm.metric.api.MultiCountMetric;
 import org.apache.storm.topology.IRichBolt;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
 
+/**
+ * First stage of the topology: parses the email headers and computes the content hash in one pass over the file, and
+ * lists the parts that need Tika. Only the headers travel on to deduplication: the text and the parts travel by
+ * reference, the {@link EmailSource} of the email and the place of each part in it, and are read again by the
+ * extraction stage for masters only. An email is either a whole file or, for a message
+ * of a mailbox, a byte range of the file as found by {@link ContainerSplitBolt}.
+ *
+ * An email that cannot be parsed is emitted on the {@value #DEAD_LETTER_STREAM} stream, with its path and the failure
+ * as its processing exception, so it is indexed as a failure instead of vanishing.
+ */
 public class ThreeVEedEmlBolt implements IRichBolt {
     private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(ThreeVEedEmlBolt.class);
+    private static final int DEFAULT_METRICS_INTERVAL_SECS = 60;
+    static final String LINE_BREAK = "<br/>";
+    
+    /** Stream of the documents that could not be processed, carrying their processing exception. */
+    public static final String DEAD_LETTER_STREAM = "dead-letter";
     
     private OutputCollector collector;
-    private Tika tika;
     private String inputDir;
-    private SolrIndex solrIndex;
     private String custodian;
+    private String caseId;
+    private EmlParserFactory parserFactory;
+    private HistogramMetric parseLatency;
+    private MultiCountMetric counters;
+    private MultiCountMetric failures;
     
     @Override
     public void prepare(Map stormConf, TopologyContext context,
             OutputCollector collector) {
         this.collector = collector;
         
-        tika = new Tika();
-        tika.setMaxStringLength(10 * 1024 * 1024);
         inputDir = stormConf.get("inputFile").toString();
-        String solrUrl = stormConf.get("solrUrl").toString();
-        String caseId = stormConf.get("caseId").toString();
         custodian = stormConf.get("custodian").toString();
+        caseId = stormConf.get("caseId").toString();
+        parserFactory = new EmlParserFactory();
         
-        solrIndex = new SolrIndex(solrUrl, caseId);
+        int metricsInterval = Utils.getInt(stormConf.get("metricsIntervalSecs"), DEFAULT_METRICS_INTERVAL_SECS);
+        parseLatency = context.registerMetric("parse-latency-us", new HistogramMetric(), metricsInterval);
+        counters = context.registerMetric("parse", new MultiCountMetric(), metricsInterval);
+        failures = context.registerMetric("parse-failures", new MultiCountMetric(), metricsInterval);
     }
 
     @Override
     public void execute(Tuple input) {
-        String fileName = input.getString(0);
-        File file = new File(fileName);
+        String fileName = input.getStringByField("path");
+        int length = input.getIntegerByField("length");
+        EmailSource source = new EmailSource(input.getStringByField("file"),
+                length < 0 ? 0 : input.getLongByField("offset"), length);
         
         DocumentMetadata metadata = new DocumentMetadata();
-        TikaInputStream inputStream = null;
         
+        long start = System.nanoTime();
         try {
             metadata.setOriginalPath(getOriginalDocumentPath(fileName));
+            metadata.setUniqueId(DocumentIds.forEmail(caseId, fileName));
             
-            EmlParser emlParser = new EmlParser(file);
+            EmlParser emlParser = source.parse(parserFactory);
             extractEmlFields(fileName, metadata, emlParser);
-            
-            inputStream = TikaInputStream.get(file);
-            String text = tika.parseToString(inputStream, metadata);
-            metadata.set("text", text);
-
-            parseDateTimeReceivedFields(metadata);
-            parseDateTimeSentFields(metadata, emlParser.getSentDate());
+            normalizeDates(metadata, emlParser.getSentDate());
             
             metadata.setCustodian(custodian);
             
-            solrIndex.addData(metadata);
+            String hash = emlParser.getContentHash();
+            metadata.setHash(hash);
+            
+            ArrayList<PartContent> parts = listParts(emlParser);
+            parseLatency.recordSince(start);
+            counters.scope("emails").incr();
+            counters.scope("bytes").incrBy(source.size());
+            counters.scope("attachments").incrBy(emlParser.getAttachments().size());
+            
+            collector.emit(input, new Values(metadata, source, parts, hashKey(hash)));
         } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (Exception e) {
-                    e.printStackTrace(System.out);
-                }
-            }
+            failures.scope(e.getClass().getSimpleName()).incr();
+            logger.warn("Cannot parse " + fileName, e);
+            DocumentMetadata failed = new DocumentMetadata();
+            failed.setOriginalPath(metadata.getOriginalPath());
+            failed.setUniqueId(metadata.getUniqueId());
+            failed.setCustodian(custodian);
+            failed.set(Metadata.CONTENT_TYPE, "message/rfc822");
+            failed.setProcessingException(e.toString());
+            collector.emit(DEAD_LETTER_STREAM, input, new Values(failed));
         }
         
         collector.ack(input);
@@ -86,7 +121,8 @@ public class ThreeVEedEmlBolt implements IRichBolt {
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-        declarer.declare(new Fields("word"));
+        declarer.declare(new Fields("document", "source", "parts", "hash"));
+        declarer.declareStream(DEAD_LETTER_STREAM, new Fields("document"));
     }
 
     @Override
@@ -98,21 +134,17 @@ public class ThreeVEedEmlBolt implements IRichBolt {
         return null;
     }
     
+    /**
+     * Fill the metadata from the headers. The text is left to the extraction stage, which also appends the attachment
+     * listing.
+     */
     private void extractEmlFields(String fileName, DocumentMetadata metadata, EmlParser emlParser) {
         try {
-            String text = prepareContent(emlParser.getContent());
-            List<String> attachments = emlParser.getAttachmentNames();
-            if (attachments.size() > 0) {
-                text += "<br/>=====================================<br/>Attachments:<br/><br/>";
-
-                for (String att : attachments) {
-                    if (att != null) {
-                        text += att + "<br/>";
-                    }
-                }
+            if (emlParser.getAttachments().size() > 0) {
+                metadata.setHasAttachments(true);
             }
 
-            metadata.set("text", text);
+            metadata.set(Metadata.CONTENT_TYPE, "message/rfc822");
             if (emlParser.getFrom() != null) {
                 metadata.setMessageFrom(getAddressLine(emlParser.getFrom()));
             }
@@ -130,7 +162,7 @@ public class ThreeVEedEmlBolt implements IRichBolt {
             }
 
             if (emlParser.getDate() != null) {
-                metadata.setMessageCreationDate(formatDate(emlParser.getDate()));
+                metadata.setMessageCreationDate(DateNormalizer.normalize(emlParser.getDate()).getIsoDay());
             }
 
         } catch (Exception e) {
@@ -138,22 +170,72 @@ public class ThreeVEedEmlBolt implements IRichBolt {
         }
     }
     
-    private static String prepareContent(String content) {
-        StringBuilder result = new StringBuilder();
-
-        String[] lines = content.split("\n");
-        for (String line : lines) {
-            result.append(line.replaceAll("<", "&lt;").replaceAll(">", "&gt;"));
-            result.append("<br/>");
+    /**
+     * List the HTML bodies and attachments for the extraction stage, without decoding them.
+     */
+    private static ArrayList<PartContent> listParts(EmlParser emlParser) {
+        ArrayList<PartContent> parts = new ArrayList<>();
+        for (int i = 0; i < emlParser.getHtmlParts().size(); i++) {
+            parts.add(new PartContent(PartContent.Kind.HTML_BODY, i, null, "text/html"));
         }
-
+        List<EmlAttachment> attachments = emlParser.getAttachments();
+        for (int i = 0; i < attachments.size(); i++) {
+            EmlAttachment att = attachments.get(i);
+            parts.add(new PartContent(PartContent.Kind.ATTACHMENT, i, att.getName(), att.getContentType()));
+        }
+        return parts;
+    }
+    
+    /**
+     * @return the first 64 bits of the hex content hash, used to group copies of an email on one dedup task.
+     */
+    private static long hashKey(String hash) {
+        return hash == null ? 0 : new BigInteger(hash.substring(0, 16), 16).longValue();
+    }
+    
+    static String prepareContent(String content) {
+        StringBuilder result = new StringBuilder(content.length() + content.length() / 8 + LINE_BREAK.length());
+        appendContent(result, content);
         return result.toString();
     }
-
-    private static String formatDate(Date date) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return sdf.format(date);
+    
+    /**
+     * Append the text escaped for display, every line ended by a line break, in a single pass that copies unchanged
+     * runs straight into the output. Trailing empty lines are dropped.
+     */
+    static void appendContent(StringBuilder out, String content) {
+        if (content.isEmpty()) {
+            out.append(LINE_BREAK);
+            return;
+        }
+        int end = content.length();
+        while (end > 0 && content.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (end == 0) {
+            return;
+        }
+        
+        int run = 0;
+        for (int i = 0; i < end; i++) {
+            String replacement;
+            switch (content.charAt(i)) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '\n':
+                    replacement = LINE_BREAK;
+                    break;
+                default:
+                    continue;
+            }
+            out.append(content, run, i).append(replacement);
+            run = i + 1;
+        }
+        out.append(content, run, end).append(LINE_BREAK);
     }
 
     private static String getAddressLine(List<String> addresses) {
@@ -168,46 +250,19 @@ public class ThreeVEedEmlBolt implements IRichBolt {
         return result.toString();
     }
     
-    private void parseDateTimeSentFields(DocumentMetadata metadata, Date sentDate) {
-        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        String date = df.format(sentDate);
-        parseDateTimeFields(metadata, date);
-    }
-
-    private void parseDateTimeReceivedFields(DocumentMetadata metadata) {
-        String date = metadata.getMessageDate();
-        parseDateTimeFields(metadata, date);
-    }
-    
-    private void parseDateTimeFields(DocumentMetadata metadata, String date) {
-        if (date != null && date.length() > 0) {
-            try {
-                SimpleDateFormat df = null;
-                if (date.startsWith("00")) {
-                    df = new SimpleDateFormat("'00'yy-MM-dd'T'HH:mm:ss'Z'");
-                } else {
-                    df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-                }
-
-                Date dateObj = df.parse(date);
-
-                SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyyMMdd");
-                dateFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-                String dateOnly = dateFormatter.format(dateObj);
-
-                metadata.setMessageDate(dateOnly);
-                metadata.setMessageDateReceived(dateOnly);
-
-                SimpleDateFormat timeFormatter = new SimpleDateFormat("HH:mm");
-                timeFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-                String timeOnly = timeFormatter.format(dateObj);
-
-                metadata.setMessageTimeReceived(timeOnly);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+    /**
+     * Fill the date fields from the sent date, in UTC. An email without a usable date is indexed without them.
+     */
+    private static void normalizeDates(DocumentMetadata metadata, Date sentDate) {
+        DateNormalizer.Normalized sent = DateNormalizer.normalize(sentDate);
+        if (sent == null) {
+            return;
         }
+        metadata.setMessageDate(sent.getDay());
+        metadata.setMessageDateReceived(sent.getDay());
+        metadata.setMessageTimeReceived(sent.getTime());
     }
+    
     private String getOriginalDocumentPath(String fileName) {
         return fileName != null ? fileName.replace(inputDir, "") : "";
     }
@@ -0,0 +1,207 @@
+package org.threeveed.core;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ *
+ * Collects the text of one document in chunks of bounded size, so a large document never has to be held in memory at
+ * once. Every chunk is handed to a {@link ChunkListener} once it is full and more text follows; the last one when
+ * {@link #finish()} is called. Past the document limit further text is dropped, and as a SAX handler the parse is
+ * stopped.
+ *
+ * Chunks end at the last whitespace before the chunk size when there is one close to it, otherwise at the chunk size,
+ * so the same text is always split the same way. A handler is reused for document after document through
+ * {@link #reset(ChunkListener)}. Not thread safe.
+ *
+ */
+public class BoundedTextHandler extends DefaultHandler {
+
+    /**
+     * Receives the text of a document chunk by chunk.
+     */
+    public interface ChunkListener {
+        /**
+         * @param index position of the chunk in the document, from 0.
+         * @param text text of the chunk.
+         */
+        void chunk(int index, String text);
+    }
+
+    /**
+     * Thrown to stop a parse once the document limit is reached.
+     */
+    public static class LimitReachedException extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitReachedException() {
+            super("document text limit reached");
+        }
+    }
+
+    private static final int MAX_SPLIT_WINDOW = 1024;
+    private static final int MAX_RETAINED_CHARS = 4 * 1024 * 1024;
+    private static final int INITIAL_CHARS = 64 * 1024;
+
+    private final int chunkChars;
+    private final long maxChars;
+    private StringBuilder buffer = new StringBuilder(INITIAL_CHARS);
+    private ChunkListener listener;
+    private long total;
+    private int chunks;
+    private boolean truncated;
+
+    /**
+     * @param chunkChars most characters of a chunk.
+     * @param maxChars most characters of a document; with maxChars equal to chunkChars a document is one chunk, cut
+     * at the limit.
+     */
+    public BoundedTextHandler(int chunkChars, long maxChars) {
+        if (chunkChars <= 0 || maxChars < chunkChars) {
+            throw new IllegalArgumentException("chunk of " + chunkChars + " chars for documents of " + maxChars);
+        }
+        this.chunkChars = chunkChars;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Start a new document.
+     */
+    public void reset(ChunkListener listener) {
+        this.listener = listener;
+        buffer.setLength(0);
+        total = 0;
+        chunks = 0;
+        truncated = false;
+    }
+
+    /**
+     * @return false if the document limit was reached, the text past it was dropped.
+     */
+    public boolean append(CharSequence text) {
+        return append(text, 0, text.length());
+    }
+
+    /**
+     * @return false if the document limit was reached, the text past it was dropped.
+     */
+    public boolean append(CharSequence text, int start, int end) {
+        while (start < end) {
+            if (total >= maxChars) {
+                truncated = true;
+                return false;
+            }
+            // a full chunk is only handed over once more text follows, so the last chunk is never empty
+            if (buffer.length() == chunkChars) {
+                flush();
+            }
+            int n = (int) Math.min(end - start, Math.min(chunkChars - buffer.length(), maxChars - total));
+            if (text instanceof CharArray) {
+                CharArray array = (CharArray) text;
+                buffer.append(array.chars, array.offset + start, n);
+            } else {
+                buffer.append(text, start, start + n);
+            }
+            total += n;
+            start += n;
+        }
+        return true;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (!append(new CharArray(ch, start, length))) {
+            throw new LimitReachedException();
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    /**
+     * Hand the remaining text to the listener as the last chunk, also when the document has no text at all.
+     *
+     * @return the number of chunks of the document.
+     */
+    public int finish() {
+        listener.chunk(chunks++, buffer.toString());
+        buffer.setLength(0);
+        // one huge document should not pin its buffer forever
+        if (buffer.capacity() > MAX_RETAINED_CHARS) {
+            buffer = new StringBuilder(INITIAL_CHARS);
+        }
+        return chunks;
+    }
+
+    /**
+     * @return true if text past the document limit was dropped.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return true if the exception, or one of its causes, is the one stopping a parse at the document limit.
+     */
+    public static boolean isLimitReached(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof LimitReachedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flush() {
+        int cut = chunkChars;
+        int window = Math.min(MAX_SPLIT_WINDOW, chunkChars / 8);
+        for (int i = chunkChars - 1; i >= chunkChars - window && i > 0; i--) {
+            if (Character.isWhitespace(buffer.charAt(i))) {
+                cut = i + 1;
+                break;
+            }
+        }
+        if (cut == chunkChars && cut > 1 && Character.isHighSurrogate(buffer.charAt(cut - 1))) {
+            cut--;
+        }
+        listener.chunk(chunks++, buffer.substring(0, cut));
+        buffer.delete(0, cut);
+    }
+
+    /**
+     * View of a SAX character array, so it is appended without a copy.
+     */
+    private static final class CharArray implements CharSequence {
+        private final char[] chars;
+        private final int offset;
+        private final int length;
+
+        CharArray(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new CharArray(chars, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, length);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package org.threeveed.core;
+
+import java.util.Date;
+
+/**
+ *
+ * UTC date formatting and ISO 8601 parsing for the date fields of the index, without SimpleDateFormat: the calendar
+ * arithmetic is done on the epoch day, so nothing is shared but immutable values and every method is thread safe.
+ *
+ * Emails of a mailbox are often sent within the same second (mass mailings, threads replayed by a server), so the
+ * formatted fields of recently seen seconds are kept in a small direct-mapped cache.
+ *
+ * Malformed or missing dates never throw: parsing returns {@link #INVALID} and normalizing returns null.
+ *
+ */
+public final class DateNormalizer {
+
+    /** Returned by {@link #parseIso(String)} for text that is not a supported ISO 8601 date. */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final int CACHE_SIZE = 1024;
+    private static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+    private static final int TWO_DIGIT_YEAR_PIVOT = 70;
+
+    private static final Normalized[] cache = new Normalized[CACHE_SIZE];
+
+    private DateNormalizer() {
+    }
+
+    /**
+     * Date and time fields of one instant, in UTC and at second precision.
+     */
+    public static final class Normalized {
+        private final long seconds;
+        private final String iso;
+        private final String isoDay;
+        private final String day;
+        private final String time;
+
+        private Normalized(long seconds, String iso, String isoDay, String day, String time) {
+            this.seconds = seconds;
+            this.iso = iso;
+            this.isoDay = isoDay;
+            this.day = day;
+            this.time = time;
+        }
+
+        /**
+         * @return yyyy-MM-dd'T'HH:mm:ss'Z'
+         */
+        public String getIso() {
+            return iso;
+        }
+
+        /**
+         * @return yyyy-MM-dd
+         */
+        public String getIsoDay() {
+            return isoDay;
+        }
+
+        /**
+         * @return yyyyMMdd
+         */
+        public String getDay() {
+            return day;
+        }
+
+        /**
+         * @return HH:mm
+         */
+        public String getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * @param millis milliseconds since the epoch.
+     * @return the UTC fields of the instant.
+     */
+    public static Normalized normalize(long millis) {
+        long seconds = floorDiv(millis, 1000);
+        int slot = (int) (seconds & (CACHE_SIZE - 1));
+        Normalized cached = cache[slot];
+        if (cached != null && cached.seconds == seconds) {
+            return cached;
+        }
+
+        long days = floorDiv(millis, MILLIS_PER_DAY);
+        int secondOfDay = (int) (seconds - days * 24 * 3600);
+        long civil = civilFromDays(days);
+        int year = (int) (civil >> 16);
+        int month = (int) (civil >> 8) & 0xFF;
+        int day = (int) civil & 0xFF;
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+
+        char[] buffer = new char[32];
+        int length = appendYear(buffer, 0, year);
+        int dayStart = length;
+        buffer[length++] = '-';
+        length = append2(buffer, length, month);
+        buffer[length++] = '-';
+        length = append2(buffer, length, day);
+        String isoDay = new String(buffer, 0, length);
+        String compactDay = new StringBuilder(length).append(buffer, 0, dayStart)
+                .append(buffer, dayStart + 1, 2).append(buffer, dayStart + 4, 2).toString();
+        buffer[length++] = 'T';
+        int timeStart = length;
+        length = append2(buffer, length, hour);
+        buffer[length++] = ':';
+        length = append2(buffer, length, minute);
+        String time = new String(buffer, timeStart, length - timeStart);
+        buffer[length++] = ':';
+        length = append2(buffer, length, second);
+        buffer[length++] = 'Z';
+
+        Normalized normalized = new Normalized(seconds, new String(buffer, 0, length), isoDay, compactDay, time);
+        cache[slot] = normalized;
+        return normalized;
+    }
+
+    /**
+     * @param date a date, may be null.
+     * @return the UTC fields of the date, or null.
+     */
+    public static Normalized normalize(Date date) {
+        return date == null ? null : normalize(date.getTime());
+    }
+
+    /**
+     * Parse the ISO 8601 shapes found in email metadata: yyyy-MM-dd, optionally followed by 'T' or a space and
+     * HH:mm[:ss[.fraction]], optionally followed by Z, +HH:mm, +HHmm or +HH. Without an offset the time is taken as
+     * UTC.
+     * A year written as 00yy is read as a two digit year (00-69 as 20yy, 70-99 as 19yy), as left behind by clients
+     * that formatted yy into yyyy.
+     *
+     * @param text date to parse, may be null.
+     * @return milliseconds since the epoch, or {@link #INVALID}.
+     */
+    public static long parseIso(String text) {
+        if (text == null) {
+            return INVALID;
+        }
+        String s = text.trim();
+        int length = s.length();
+        if (length < 10 || s.charAt(4) != '-' || s.charAt(7) != '-') {
+            return INVALID;
+        }
+
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        if (year >= 0 && year < 100 && s.startsWith("00")) {
+            year += year < TWO_DIGIT_YEAR_PIVOT ? 2000 : 1900;
+        }
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return INVALID;
+        }
+
+        int hour = 0;
+        int minute = 0;
+        int second = 0;
+        int millis = 0;
+        int offsetMinutes = 0;
+        int pos = 10;
+        if (pos < length) {
+            char separator = s.charAt(pos);
+            if ((separator != 'T' && separator != ' ') || pos + 6 > length || s.charAt(pos + 3) != ':') {
+                return INVALID;
+            }
+            hour = digits(s, pos + 1, 2);
+            minute = digits(s, pos + 4, 2);
+            pos += 6;
+            if (pos < length && s.charAt(pos) == ':') {
+                second = digits(s, pos + 1, 2);
+                pos += 3;
+                if (pos < length && (s.charAt(pos) == '.' || s.charAt(pos) == ',')) {
+                    int fractionStart = ++pos;
+                    int scale = 100;
+                    while (pos < length && Character.isDigit(s.charAt(pos))) {
+                        millis += (s.charAt(pos) - '0') * scale;
+                        scale /= 10;
+                        pos++;
+                    }
+                    if (pos == fractionStart) {
+                        return INVALID;
+                    }
+                }
+            }
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+                return INVALID;
+            }
+            // a leap second is folded into the second before it
+            second = Math.min(second, 59);
+
+            if (pos < length) {
+                char zone = s.charAt(pos);
+                if (zone == 'Z' && pos + 1 == length) {
+                    pos++;
+                } else if (zone == '+' || zone == '-') {
+                    int remaining = length - pos - 1;
+                    int offsetHours = digits(s, pos + 1, 2);
+                    int offsetMins;
+                    if (remaining == 2) {
+                        offsetMins = 0;
+                    } else if (remaining == 4) {
+                        offsetMins = digits(s, pos + 3, 2);
+                    } else if (remaining == 5 && s.charAt(pos + 3) == ':') {
+                        offsetMins = digits(s, pos + 4, 2);
+                    } else {
+                        return INVALID;
+                    }
+                    if (offsetHours < 0 || offsetHours > 18 || offsetMins < 0 || offsetMins > 59) {
+                        return INVALID;
+                    }
+                    offsetMinutes = (offsetHours * 60 + offsetMins) * (zone == '-' ? -1 : 1);
+                    pos = length;
+                } else {
+                    return INVALID;
+                }
+            }
+        }
+        if (pos != length) {
+            return INVALID;
+        }
+
+        long seconds = daysFromCivil(year, month, day) * 24 * 3600 + hour * 3600 + minute * 60 + second
+                - offsetMinutes * 60L;
+        return seconds * 1000 + millis;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * @return year, month and day of the epoch day packed as year << 16 | month << 8 | day.
+     */
+    private static long civilFromDays(long epochDay) {
+        long z = epochDay + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year << 16 | month << 8 | day;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * @return the decimal value of count digits at start, or -1 if they are not all digits.
+     */
+    private static int digits(String s, int start, int count) {
+        if (start + count > s.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int appendYear(char[] buffer, int pos, int year) {
+        if (year >= 0 && year <= 9999) {
+            pos = append2(buffer, pos, year / 100);
+            return append2(buffer, pos, year % 100);
+        }
+        String digits = Integer.toString(year);
+        digits.getChars(0, digits.length(), buffer, pos);
+        return pos + digits.length();
+    }
+
+    private static int append2(char[] buffer, int pos, int value) {
+        buffer[pos] = (char) ('0' + value / 10);
+        buffer[pos + 1] = (char) ('0' + value % 10);
+        return pos + 2;
+    }
+}
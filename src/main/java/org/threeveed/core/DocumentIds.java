@@ -0,0 +1,59 @@
+package org.threeveed.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ *
+ * Document ids derived from where a document comes from rather than from a counter, so every worker computes the same
+ * id for the same document, in this run or after a restart, and a replayed document overwrites itself in the index
+ * instead of being added again. An email is identified by its case and path alone, not by anything read from its
+ * content, so an email indexed as a failure gets the same id once it parses and is replaced; its attachments and the
+ * chunks of a split document by their parent's id and their position in it.
+ *
+ * Ids are 32 hex digits of an MD5.
+ *
+ */
+public final class DocumentIds {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private DocumentIds() {
+    }
+
+    /**
+     * @param caseId case the email is processed for.
+     * @param path path of the email in the input, for a message of a mailbox &lt;mailbox path&gt;/&lt;offset&gt;.eml.
+     */
+    public static String forEmail(String caseId, String path) {
+        return md5Hex(caseId, path);
+    }
+
+    /**
+     * @param parentId id of the email.
+     * @param index position of the attachment among the attachments of the email, from 0.
+     * @param name attachment name, which alone need not be unique.
+     */
+    public static String forAttachment(String parentId, int index, String name) {
+        return md5Hex(parentId, Integer.toString(index), name != null ? name : "");
+    }
+
+    /**
+     * @param documentId id of the document that was split.
+     * @param chunk number of the chunk, from 2 as the first chunk stays with the document.
+     */
+    public static String forChunk(String documentId, int chunk) {
+        return md5Hex(documentId, "#" + chunk);
+    }
+
+    private static String md5Hex(String... parts) {
+        MessageDigest md5 = Hashes.md5();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                md5.update((byte) SEPARATOR);
+            }
+            md5.update(String.valueOf(parts[i]).getBytes(StandardCharsets.UTF_8));
+        }
+        return Hashes.hex(md5.digest());
+    }
+}
@@ -10,14 +10,17 @@ import org.apache.tika.metadata.Metadata;
  */
 public class DocumentMetadata extends Metadata {
 
-    private static final String DOCUMENT_ORIGINAL_PATH = "document_original_path";
+    static final String DOCUMENT_ORIGINAL_PATH = "document_original_path";
     private static final String DOCUMENT_PARENT = "document_parent";
-    private static final String DOCUMENT_TEXT = "text";
-    private static final String HAS_ATTACHMENTS = "has_attachments";
-    private static final String HAS_PARENT = "has_parent";
-    private static final String PROCESSING_EXCEPTION = "processing_exception";
+    static final String DOCUMENT_TEXT = "text";
+    static final String HAS_ATTACHMENTS = "has_attachments";
+    static final String HAS_PARENT = "has_parent";
+    static final String PROCESSING_EXCEPTION = "processing_exception";
     private static final String MASTER_DUPLICATE = "master_duplicate";
-    private static final String CUSTODIAN = "Custodian";
+    private static final String TEXT_TRUNCATED = "text_truncated";
+    static final String TEXT_CHUNK = "text_chunk";
+    private static final String HASH = "Hash";
+    static final String CUSTODIAN = "Custodian";
     private static final String LINK_NATIVE = "native_link";
     private static final String LINK_TEXT = "text_link";
     private static final String LINK_EXCEPTION = "exception_link";
@@ -58,6 +61,14 @@ public class DocumentMetadata extends Metadata {
         set(CUSTODIAN, custodian);
     }
     
+    public String getProcessingException() {
+        return get(PROCESSING_EXCEPTION);
+    }
+
+    public void setProcessingException(String exception) {
+        set(PROCESSING_EXCEPTION, exception);
+    }
+    
     public String getDocumentText() {
         return get(DOCUMENT_TEXT);
     }
@@ -146,6 +157,45 @@ public class DocumentMetadata extends Metadata {
         set(TIME_SENT, s);
     }
 
+    public String getHash() {
+        return get(HASH);
+    }
+
+    public void setHash(String hash) {
+        set(HASH, hash);
+    }
+
+    public String getMasterDuplicate() {
+        return get(MASTER_DUPLICATE);
+    }
+
+    public void setMasterDuplicate(String master) {
+        set(MASTER_DUPLICATE, master);
+    }
+
+    /**
+     * Number, from 1, of the chunk of text a document holds when the text of a large document was split.
+     */
+    public String getTextChunk() {
+        return get(TEXT_CHUNK);
+    }
+
+    public void setTextChunk(int chunk) {
+        set(TEXT_CHUNK, Integer.toString(chunk));
+    }
+
+    public boolean isTextTruncated() {
+        return isPropertyTrue(TEXT_TRUNCATED);
+    }
+
+    /**
+     * Set a flag to indicate that text past the extraction limit was dropped.
+     * @param b true if the text was truncated.
+     */
+    public void setTextTruncated(boolean b) {
+        setProperty(TEXT_TRUNCATED, b);
+    }
+
     public void setUniqueId(String id) {
         set(UNIQUE_ID, id);
     }
@@ -0,0 +1,66 @@
+package org.threeveed.core;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ *
+ * Where an email is stored: a whole file, or a byte range of a container file such as a message of an mbox file. It
+ * travels with the email through the topology so later stages can parse the email again instead of receiving its
+ * parts.
+ *
+ */
+public class EmailSource implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String file;
+    private final long offset;
+    private final int length;
+
+    /**
+     * @param file file holding the email.
+     * @param offset offset of the email in the file.
+     * @param length length of the email in bytes, or -1 if the email is the whole file.
+     */
+    public EmailSource(String file, long offset, int length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the email in bytes, or -1 if the email is the whole file.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return size of the email in bytes.
+     */
+    public long size() {
+        return length < 0 ? new File(file).length() : length;
+    }
+
+    /**
+     * @return the parsed email, valid until the next call to the factory.
+     * @throws Exception if the email cannot be read or parsed.
+     */
+    public EmlParser parse(EmlParserFactory factory) throws Exception {
+        return length < 0 ? factory.parse(new File(file)) : factory.parse(new File(file), offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return length < 0 ? file : file + "@" + offset + "+" + length;
+    }
+}
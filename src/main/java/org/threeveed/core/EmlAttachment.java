@@ -0,0 +1,49 @@
+package org.threeveed.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+
+/**
+ *
+ * An attachment found while walking the MIME tree of an email. The content is not decoded until
+ * {@link #openStream()} is called.
+ *
+ */
+public class EmlAttachment {
+
+    private final String name;
+    private final String contentType;
+    private final Part part;
+
+    public EmlAttachment(String name, String contentType, Part part) {
+        this.name = name;
+        this.contentType = contentType;
+        this.part = part;
+    }
+
+    /**
+     * @return file name of the attachment, or a generated attach-N name if the part has none.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return MIME type declared by the part, without parameters.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return stream of the decoded attachment content, read straight from the MIME part.
+     * @throws IOException if the content cannot be decoded.
+     * @throws MessagingException if the part is malformed.
+     */
+    public InputStream openStream() throws IOException, MessagingException {
+        return part.getInputStream();
+    }
+}
@@ -1,14 +1,21 @@
 package org.threeveed.core;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.Properties;
 
 import javax.mail.Address;
 import javax.mail.BodyPart;
@@ -17,15 +24,17 @@ import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
-import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class EmlParser {
     private static final Logger log = LoggerFactory.getLogger(EmlParser.class);
+    private static final String DECODE_PARAMETERS = "mail.mime.decodeparameters";
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
     
     private File emailFile;
     private ArrayList<String> to;
@@ -34,40 +43,96 @@ public class EmlParser {
     private Address[] _to;
     private Address[] _from;
     private String _subject;
-    private Object _content;
+    private String _content;
     private MimeMessage email;
     private List<String> _attachments;
+    private List<EmlAttachment> _attachmentParts;
+    private List<Part> _htmlParts;
     private Date _date;
     private Date _sentDate;
-    private Map<String, String> attachmentsContent;
+    private String _messageId;
+    private byte[] _rawDigest;
+    private final boolean headersOnly;
+    private boolean walked;
     private int attachmentSeq = 0;
 
+    /**
+     * Parse an email file with a session shared by all parsers of the JVM. Prefer {@link EmlParserFactory}, which
+     * also reuses its read buffer.
+     */
     public EmlParser(File emailFile) throws Exception {
+        this(emailFile, DefaultSession.INSTANCE, null, 0, false);
+    }
+
+    /**
+     * Parse an email file, from memory if content is given. MimeMessage refers to the content instead of copying it,
+     * so it must not be modified while this parser is in use.
+     *
+     * @param emailFile the email file.
+     * @param session session created by {@link #createSession()}.
+     * @param content the file read into memory, or null to read the file.
+     * @param length number of bytes of content.
+     * @param headersOnly true if content only holds the header block, see {@link EmlParserFactory#parseHeaders(File)}.
+     */
+    EmlParser(File emailFile, Session session, byte[] content, int length, boolean headersOnly) throws Exception {
         this.emailFile = emailFile;
+        this.headersOnly = headersOnly;
         _attachments = new ArrayList<>();
-        System.setProperty("mail.mime.address.strict", "false");
-        System.setProperty("mail.mime.decodeparameters", "true");
-        attachmentsContent = new HashMap<>();
+        _attachmentParts = new ArrayList<>();
+        _htmlParts = new ArrayList<>();
         
-        parseEmail();
+        parseEmail(session, content, length);
     }
 
-    private void parseEmail() throws Exception {
-        java.util.Properties properties = System.getProperties();
-        Session session = Session.getDefaultInstance(properties);
-        
-        FileInputStream fis = null;
+    /**
+     * Create a session configured for lenient parsing of real-world mail. Sessions are meant to be created once, e.g.
+     * in a bolt's prepare(), and shared by all the messages parsed there.
+     */
+    public static Session createSession() {
+        // JavaMail reads this one from the system properties, once, when it loads its parameter parser
+        synchronized (EmlParser.class) {
+            if (System.getProperty(DECODE_PARAMETERS) == null) {
+                System.setProperty(DECODE_PARAMETERS, "true");
+            }
+        }
+        Properties properties = new Properties();
+        properties.setProperty("mail.mime.address.strict", "false");
+        properties.setProperty(DECODE_PARAMETERS, "true");
+        return Session.getInstance(properties);
+    }
+
+    private static final class DefaultSession {
+        private static final Session INSTANCE = createSession();
+    }
+
+    private void parseEmail(Session session, byte[] content, int length) throws Exception {
+        InputStream fis = null;
         try {
-            fis = new FileInputStream(emailFile);
-            email = new MimeMessage(session, fis);
+            MessageDigest md5 = Hashes.md5();
+            if (content != null) {
+                md5.update(content, 0, length);
+                email = new MimeMessage(session, new SharedByteArrayInputStream(content, 0, length));
+            } else {
+                fis = new BufferedInputStream(new DigestInputStream(new FileInputStream(emailFile), md5),
+                        STREAM_BUFFER_SIZE);
+                email = new MimeMessage(session, fis);
+            }
+            _rawDigest = headersOnly ? null : md5.digest();
+            _messageId = email.getMessageID();
             _bcc = email.getRecipients(RecipientType.BCC);
             _cc = email.getRecipients(RecipientType.CC);
             _to = email.getRecipients(RecipientType.TO);
             _from = email.getFrom();
             _subject = email.getSubject();
-            _content =  email.getContent();
             _date = email.getReceivedDate();
             _sentDate = email.getSentDate();
+            if (_sentDate == null) {
+                // some export tools write ISO 8601 instead of RFC 822 dates
+                long sent = DateNormalizer.parseIso(email.getHeader("Date", null));
+                if (sent != DateNormalizer.INVALID) {
+                    _sentDate = new Date(sent);
+                }
+            }
             //System.out.println("content type: " + email.getContentType());
             //System.out.println("\nsubject: " + email.getSubject());
             //to = EmailUtil.parseAddressLines(email
@@ -124,64 +189,190 @@ public class EmlParser {
         return _date;
     }
     
-    public String getContent() throws MessagingException, IOException {
-        if (_content instanceof String) {
-            return _content.toString();
-        } 
-        
-        if (_content instanceof MimeMultipart) {
-            MimeMultipart cnt = (MimeMultipart)_content;
-            int size = cnt.getCount();
-            StringBuilder res = new StringBuilder();
-            
-            for (int i = 0; i < size; ++i) {
-                BodyPart bp = cnt.getBodyPart(i);
-                res.append(dumpPart(bp));
-            } 
-            return res.toString();
+    public String getMessageId() {
+        return _messageId;
+    }
+    
+    /**
+     * Hash identifying copies of the same email. Copies from different mailboxes differ in their transport headers, so
+     * when the message has a Message-ID the hash covers the normalized Message-ID, the plain text body, and the MD5 of
+     * the decoded content of every HTML body and every attachment, in order; otherwise it is the MD5 of the raw message
+     * bytes. Copies that lost an attachment on the way, or whose HTML body was changed, are therefore not copies. If a
+     * part cannot be decoded the hash falls back to the raw bytes, so only identical copies count as copies. Parts are
+     * decoded for this through a small buffer, never held in memory as a whole.
+     *
+     * @return MD5 as 32 hex digits.
+     */
+    public String getContentHash() {
+        requireBody();
+        byte[] digest = _rawDigest;
+        if (_messageId != null && _messageId.trim().length() > 0) {
+            walk();
+            MessageDigest md5 = Hashes.md5();
+            md5.update(_messageId.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            md5.update((byte) '\n');
+            if (_content != null) {
+                md5.update(_content.getBytes(StandardCharsets.UTF_8));
+            }
+            try {
+                MessageDigest partMd5 = Hashes.md5();
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                for (Part htmlPart : _htmlParts) {
+                    md5.update(digestPart(htmlPart.getInputStream(), partMd5, buffer));
+                }
+                for (EmlAttachment attachment : _attachmentParts) {
+                    md5.update(digestPart(attachment.openStream(), partMd5, buffer));
+                }
+                digest = md5.digest();
+            } catch (IOException | MessagingException e) {
+                log.debug("Cannot decode a part of " + emailFile + ", hashing its raw bytes", e);
+            }
         }
-        
-        return "";
+        return digest == null ? null : Hashes.hex(digest);
+    }
+    
+    /**
+     * @return the MD5 of the stream, which is closed.
+     */
+    private static byte[] digestPart(InputStream in, MessageDigest md5, byte[] buffer) throws IOException {
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                md5.update(buffer, 0, n);
+            }
+            return md5.digest();
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * @return the plain text body of the email, collected from all text/plain parts.
+     */
+    public String getContent() {
+        walk();
+        return _content;
+    }
+    
+    /**
+     * @return HTML body parts that have no plain text alternative. Their text still needs to be extracted.
+     */
+    public List<Part> getHtmlParts() {
+        walk();
+        return _htmlParts;
+    }
+    
+    /**
+     * @return the attachments, in the order they appear in the message.
+     */
+    public List<EmlAttachment> getAttachments() {
+        walk();
+        return _attachmentParts;
+    }
+
+    /**
+     * @return true if only the headers were read: the header fields are available, the body and the content hash are
+     * not.
+     */
+    public boolean isHeadersOnly() {
+        return headersOnly;
+    }
+
+    private void requireBody() {
+        if (headersOnly) {
+            throw new IllegalStateException("only the headers of " + emailFile + " were read");
+        }
+    }
+
+    /**
+     * Walk the MIME tree the first time the body is asked for. Text parts are decoded here; attachments and HTML
+     * parts are only located, their content is decoded when their stream is read.
+     */
+    private void walk() {
+        if (walked) {
+            return;
+        }
+        requireBody();
+        walked = true;
+        if (email == null) {
+            return;
+        }
+        StringBuilder body = new StringBuilder();
+        try {
+            walkPart(email, body);
+        } catch (MessagingException e) {
+            throw new IllegalStateException("illegal state issue", e);
+        } catch (IOException e) {
+            log.error("Problem parsing eml file", e);
+        }
+        _content = body.toString();
     }
     
-    private String dumpPart(Part p) throws MessagingException, IOException {
+    private void walkPart(Part p, StringBuilder body) throws MessagingException, IOException {
+        String disp = null;
+        try {
+            disp = p.getDisposition();
+        } catch (Exception e) {
+        }
         
-        StringBuilder buf = new StringBuilder();
-        if(p.isMimeType("text/plain")) {
-            buf.append(p.getContent());
-        } else if(p.isMimeType("multipart/*")) {
-            Multipart mp = (Multipart)p.getContent();
+        if (Part.ATTACHMENT.equalsIgnoreCase(disp)) {
+            addAttachment(p);
+        } else if (p.isMimeType("text/plain")) {
+            body.append(p.getContent());
+        } else if (p.isMimeType("text/html")) {
+            _htmlParts.add(p);
+        } else if (p.isMimeType("multipart/alternative")) {
+            Part alternative = chooseAlternative((Multipart) p.getContent());
+            if (alternative != null) {
+                walkPart(alternative, body);
+            }
+        } else if (p.isMimeType("multipart/*")) {
+            Multipart mp = (Multipart) p.getContent();
             int count = mp.getCount();
             for (int i = 0; i < count; i++) {
-                BodyPart bp = mp.getBodyPart(i);
-                if (bp.isMimeType("text/plain")) {
-                    buf.append(dumpPart(bp));
-                }
+                walkPart(mp.getBodyPart(i), body);
             }
         } else if (p.isMimeType("message/rfc822")) {
-            buf.append(dumpPart((Part)p.getContent()));
-        } else
-            {
-            String disp = null;
-            try {
-                disp = p.getDisposition();                
-            } catch (Exception e) {
-            }
-            
-            String filename = "attach-" + (attachmentSeq++);
-            try {
-                filename = p.getFileName();
-            } catch (Exception e) {
-                log.error("Problem getting the real attachment name", e);
-            }
-            
-            if (disp == null || disp.equalsIgnoreCase(Part.ATTACHMENT)) {
-                log.debug("Adding attachment: " + filename);
-                
-                _attachments.add(filename);
+            walkPart((Part) p.getContent(), body);
+        } else {
+            addAttachment(p);
+        }
+    }
+    
+    /**
+     * Prefer the plain text alternative, it needs no extraction.
+     */
+    private Part chooseAlternative(Multipart mp) throws MessagingException {
+        int count = mp.getCount();
+        for (int i = 0; i < count; i++) {
+            BodyPart bp = mp.getBodyPart(i);
+            if (bp.isMimeType("text/plain")) {
+                return bp;
             }
         }
-        return buf.toString();
+        return count > 0 ? mp.getBodyPart(count - 1) : null;
+    }
+    
+    private void addAttachment(Part p) throws MessagingException {
+        String filename = null;
+        try {
+            filename = p.getFileName();
+        } catch (Exception e) {
+            log.error("Problem getting the real attachment name", e);
+        }
+        if (filename == null) {
+            filename = "attach-" + (attachmentSeq++);
+        }
+        
+        String contentType = p.getContentType();
+        int paramsStart = contentType != null ? contentType.indexOf(';') : -1;
+        if (paramsStart >= 0) {
+            contentType = contentType.substring(0, paramsStart);
+        }
+        
+        log.debug("Adding attachment: " + filename);
+        _attachments.add(filename);
+        _attachmentParts.add(new EmlAttachment(filename, contentType != null ? contentType.trim() : null, p));
     }
 
     /**
@@ -215,6 +406,7 @@ public class EmlParser {
     }
     
     public List<String> getAttachmentNames() {
+        walk();
         return _attachments;
     }
 
@@ -222,33 +414,20 @@ public class EmlParser {
         return this._sentDate;
     }
     
-    public void saveAttachments() throws MessagingException, IOException {
-        if (email.isMimeType("text/*")) {
-            // no attachments there - this is just the email itself
-        }
-        // TODO - why repeat the code?
-        if (email.isMimeType("multipart/alternative")) {
-            Multipart mp = (Multipart) email.getContent();
-            for (int i = 0; i < mp.getCount(); i++) {
-                MimeBodyPart bodyPart = (MimeBodyPart) mp.getBodyPart(i);
-                String attachmentFileName = bodyPart.getFileName();
-                if (attachmentFileName != null) {
-                    bodyPart.saveFile(attachmentFileName);
-                }
-            }
-        } else if (email.isMimeType("multipart/*")) {
-            Multipart mp = (Multipart) email.getContent();
-            for (int i = 0; i < mp.getCount(); i++) {
-                MimeBodyPart bodyPart = (MimeBodyPart) mp.getBodyPart(i);
-                String attachmentFileName = bodyPart.getFileName();
-                if (attachmentFileName != null) {
-                    bodyPart.saveFile(attachmentFileName);
-                }
+    /**
+     * Save every attachment under the given directory, named after the attachment.
+     *
+     * @param dir target directory, created if missing.
+     * @throws MessagingException if a part is malformed.
+     * @throws IOException if a file cannot be written.
+     */
+    public void saveAttachments(File dir) throws MessagingException, IOException {
+        dir.mkdirs();
+        for (EmlAttachment attachment : getAttachments()) {
+            File target = new File(dir, new File(attachment.getName()).getName());
+            try (InputStream in = attachment.openStream(); OutputStream out = new FileOutputStream(target)) {
+                IOUtils.copy(in, out);
             }
         }
     }
-    
-    public Map<String, String> getAttachmentsContent() {
-        return attachmentsContent;
-    }
 }
@@ -0,0 +1,158 @@
+package org.threeveed.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import javax.mail.Session;
+
+/**
+ *
+ * Parses email files with one JavaMail session and one read buffer reused for every message, instead of setting up
+ * both per message. Each file is read into the buffer with a single read and parsed from memory; MimeMessage refers
+ * to the parts in the buffer instead of copying them.
+ *
+ * The MIME tree is only walked, and text parts decoded, when the body of a parsed email is first asked for. Stages
+ * that only look at headers can use {@link #parseHeaders(File)}, which stops reading at the end of the header block.
+ *
+ * A parser returned by {@link #parse(File)} or {@link #parseHeaders(File)} is only valid until the next call. Not thread safe, meant to be created
+ * in a bolt's prepare().
+ *
+ */
+public class EmlParserFactory {
+
+    private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final long MAX_IN_MEMORY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int HEADER_READ_SIZE = 8 * 1024;
+
+    private final Session session;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    public EmlParserFactory() {
+        session = EmlParser.createSession();
+    }
+
+    /**
+     * @param file email file.
+     * @return the parsed email, valid until the next call.
+     * @throws Exception if the file cannot be read or parsed.
+     */
+    public EmlParser parse(File file) throws Exception {
+        long size = file.length();
+        if (size > MAX_IN_MEMORY_SIZE) {
+            return new EmlParser(file, session, null, 0, false);
+        }
+
+        ensureBuffer((int) size);
+        int length = readFully(file);
+        if (length < 0) {
+            // the file grew since its size was taken
+            return new EmlParser(file, session, null, 0, false);
+        }
+        return new EmlParser(file, session, buffer, length, false);
+    }
+
+    /**
+     * Parse one email stored as a byte range of a container file, such as a message of an mbox file.
+     *
+     * @param file container file.
+     * @param offset offset of the email in the file.
+     * @param length length of the email in bytes.
+     * @return the parsed email, valid until the next call.
+     * @throws Exception if the range cannot be read or parsed.
+     */
+    public EmlParser parse(File file, long offset, int length) throws Exception {
+        ensureBuffer(length);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            in.readFully(buffer, 0, length);
+        }
+        return new EmlParser(file, session, buffer, length, false);
+    }
+
+    private void ensureBuffer(int size) {
+        if (size > buffer.length) {
+            buffer = new byte[size];
+        } else if (buffer.length > MAX_RETAINED_BUFFER_SIZE && size <= MAX_RETAINED_BUFFER_SIZE) {
+            // one huge email should not pin its buffer forever
+            buffer = new byte[Math.max(INITIAL_BUFFER_SIZE, size)];
+        }
+    }
+
+    /**
+     * Read and parse the header block only, up to the first empty line. Addresses, subject, Message-ID and dates are
+     * available; the body, the attachments and the content hash are not.
+     *
+     * @param file email file.
+     * @return the parsed headers, valid until the next call.
+     * @throws Exception if the file cannot be read or the headers parsed.
+     */
+    public EmlParser parseHeaders(File file) throws Exception {
+        int length = readHeaders(file);
+        return new EmlParser(file, session, buffer, length, true);
+    }
+
+    /**
+     * @return the length of the header block including the empty line that ends it, or of the whole file if it has
+     * no body.
+     */
+    private int readHeaders(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int n = in.read(buffer, length, Math.min(HEADER_READ_SIZE, buffer.length - length));
+                if (n == -1) {
+                    return length;
+                }
+                // the empty line may straddle two reads
+                int end = headerEnd(Math.max(0, length - 2), length + n);
+                length += n;
+                if (end >= 0) {
+                    return end;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the offset just past the first empty line that starts in [from, to), or -1.
+     */
+    private int headerEnd(int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            if (buffer[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (buffer[i + 1] == '\r' && i + 2 < to && buffer[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of bytes read, or -1 if the file does not fit the buffer.
+     */
+    private int readFully(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            int length = 0;
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += n;
+            }
+            if (length == buffer.length && in.read() != -1) {
+                return -1;
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.threeveed.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ *
+ * MD5 helpers shared by the document ids and the content hash of emails.
+ *
+ */
+final class Hashes {
+
+    private Hashes() {
+    }
+
+    /**
+     * @return a new MD5 digest, which every JVM provides.
+     */
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the digest as lowercase hex digits, two per byte.
+     */
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package org.threeveed.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * One pooled, keep-alive HTTP client shared by everything in the worker JVM that talks to Solr.
+ *
+ * The pool is created by the first caller, later callers get the same client and their settings are ignored.
+ *
+ */
+public final class HttpClientPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpClientPool.class);
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 16;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_SOCKET_TIMEOUT_MS = 60000;
+    private static final long IDLE_CONNECTION_TIMEOUT_SECS = 30;
+    private static CloseableHttpClient client;
+
+    private HttpClientPool() {
+    }
+
+    /**
+     * @return the shared client, created with default settings if nobody configured it yet.
+     */
+    public static CloseableHttpClient getClient() {
+        return getClient(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+                DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS);
+    }
+
+    /**
+     * Get the shared client, creating it with the given settings if this is the first call in the JVM.
+     *
+     * @param maxConnections connections kept open in total.
+     * @param maxConnectionsPerRoute connections kept open to a single Solr host.
+     * @param connectTimeoutMs TCP connect timeout.
+     * @param socketTimeoutMs read timeout of a single request.
+     * @return the shared client.
+     */
+    public static synchronized CloseableHttpClient getClient(int maxConnections, int maxConnectionsPerRoute,
+            int connectTimeoutMs, int socketTimeoutMs) {
+        if (client == null) {
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(connectTimeoutMs)
+                    .setConnectionRequestTimeout(connectTimeoutMs)
+                    .setSocketTimeout(socketTimeoutMs)
+                    .build();
+
+            client = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECS, TimeUnit.SECONDS)
+                    .build();
+
+            logger.info("Created HTTP connection pool: max {} connections, {} per route",
+                    maxConnections, maxConnectionsPerRoute);
+        }
+
+        return client;
+    }
+}
@@ -0,0 +1,50 @@
+package org.threeveed.core;
+
+import java.util.concurrent.Future;
+
+import org.apache.tika.metadata.Metadata;
+
+/**
+ *
+ * Where the index bolt writes documents to: a Solr core over HTTP ({@link SolrIndex}) or a Lucene index on the local
+ * disk ({@link LuceneIndexSink}).
+ *
+ * Documents are added one by one and handed over in batches; the future of a batch tells whether its documents are
+ * safely in the index, which is when their tuples may be acked. All methods are called from a single thread, the
+ * executor thread or the sender of the spool.
+ *
+ */
+public interface IndexSink {
+
+    String SINK_SOLR = "solr";
+    String SINK_LUCENE = "lucene";
+
+    /**
+     * Buffer the document for the next batch. The document is indexed under its {@link DocumentMetadata#UNIQUE_ID},
+     * replacing any earlier version.
+     */
+    void addData(Metadata metadata);
+
+    /**
+     * @return true if the current batch should be handed over now.
+     */
+    boolean isFlushNeeded();
+
+    /**
+     * Hand the buffered documents over without waiting for them to be indexed.
+     *
+     * @return future telling whether the batch made it into the index.
+     * @throws InterruptedException if interrupted while waiting for room to send the batch.
+     */
+    Future<Boolean> flushAsync() throws InterruptedException;
+
+    /**
+     * Make everything handed over so far durable.
+     */
+    void commit();
+
+    /**
+     * Release the sink, waiting for batches still being sent.
+     */
+    void close();
+}
@@ -0,0 +1,438 @@
+package org.threeveed.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.tika.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Append-only queue of documents on the local disk, between extraction and the index. Documents are appended by the
+ * executor and taken out, in order, by a sender that may be minutes or hours behind while the index is down.
+ *
+ * The spool is a sequence of memory-mapped segment files, 0000000000000000042.spool and so on. Every document is a
+ * record of its length, a CRC32 and its fields in a compact binary form (varint counts and lengths, UTF-8 strings);
+ * a record that does not fit ends the segment. Appended documents are durable once {@link #sync()} returns. The
+ * position up to which documents were delivered is kept in read.offset, and segments before it are deleted, so after a
+ * restart delivery continues where it stopped. A torn record at the end of the last segment, left by a crash before
+ * the sync, fails its CRC and is dropped.
+ *
+ * One thread appends and syncs, one other thread reads and commits.
+ *
+ */
+public class IndexSpool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexSpool.class);
+    public static final int DEFAULT_SEGMENT_MB = 64;
+    public static final int DEFAULT_MAX_MB = 10 * 1024;
+    private static final String SUFFIX = ".spool";
+    private static final String READ_OFFSET = "read.offset";
+    private static final int HEADER_BYTES = 8;
+    private static final int END_OF_SEGMENT = -1;
+    private static final int INITIAL_RECORD_BYTES = 64 * 1024;
+    private static final int MAX_RETAINED_RECORD_BYTES = 4 * 1024 * 1024;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    // appending side
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private boolean unsynced = false;
+    private byte[] record = new byte[INITIAL_RECORD_BYTES];
+    private int recordLength;
+
+    // end of the appended documents, as seen by the reading side
+    private final Object publishLock = new Object();
+    private long publishedSegment;
+    private int publishedPosition;
+
+    // reading side
+    private long readSegment;
+    private int readPosition;
+    private MappedByteBuffer readBuffer;
+    private byte[] payload = new byte[INITIAL_RECORD_BYTES];
+    private volatile long committedSegment;
+
+    /**
+     * Open the spool in the directory, creating it if needed, with the documents not yet delivered queued for reading.
+     *
+     * @param dir directory of the spool, used by this spool only.
+     * @param segmentBytes size of a segment file; a larger document gets a segment of its own.
+     * @param maxBytes most disk space taken by undelivered segments, at least two segments.
+     * @throws IOException if the spool cannot be read or created.
+     */
+    public IndexSpool(File dir, int segmentBytes, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, 2L * segmentBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + dir);
+        }
+
+        long[] offset = loadReadOffset();
+        List<Long> segments = listSegments();
+        readSegment = offset[0];
+        readPosition = (int) offset[1];
+        if (segments.isEmpty() || segments.get(0) > readSegment) {
+            readSegment = segments.isEmpty() ? readSegment : segments.get(0);
+            readPosition = 0;
+        }
+
+        writeSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.get(segments.size() - 1));
+        writeBuffer = map(writeSegment, segmentBytes, true);
+        int end = findEnd(writeBuffer, writeSegment == readSegment ? readPosition : 0);
+        if (end == END_OF_SEGMENT) {
+            // crashed between ending the segment and starting the next one
+            writeSegment++;
+            writeBuffer = map(writeSegment, segmentBytes, true);
+            end = 0;
+        } else {
+            // clear what a crash left behind the last record, so it is never taken for a record later
+            for (int i = end; i < writeBuffer.capacity(); i++) {
+                writeBuffer.put(i, (byte) 0);
+            }
+        }
+        writeBuffer.position(end);
+        if (readSegment == writeSegment && readPosition > end) {
+            readPosition = end;
+        }
+        publish(writeSegment, end);
+        committedSegment = readSegment;
+        deleteSegmentsBefore(readSegment);
+    }
+
+    /**
+     * Append a document. It is durable once {@link #sync()} returned.
+     *
+     * @return false if the spool is full and the document was not appended.
+     * @throws IOException if a new segment cannot be created.
+     */
+    public boolean append(Metadata metadata) throws IOException {
+        encode(metadata);
+        if (writeBuffer.position() + HEADER_BYTES + recordLength > writeBuffer.capacity()) {
+            if ((writeSegment + 2 - committedSegment) * segmentBytes > maxBytes) {
+                return false;
+            }
+            startSegment();
+        }
+
+        int position = writeBuffer.position();
+        writeBuffer.position(position + HEADER_BYTES);
+        writeBuffer.put(record, 0, recordLength);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, recordLength);
+        writeBuffer.putInt(position + 4, (int) crc.getValue());
+        // the length goes last, a record without it is not there yet
+        writeBuffer.putInt(position, recordLength);
+        unsynced = true;
+        publish(writeSegment, writeBuffer.position());
+
+        if (record.length > MAX_RETAINED_RECORD_BYTES) {
+            record = new byte[INITIAL_RECORD_BYTES];
+        }
+        return true;
+    }
+
+    /**
+     * Force the appended documents to disk.
+     */
+    public void sync() {
+        if (unsynced) {
+            writeBuffer.force();
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Take the next documents out of the spool. They stay in the spool, and are read again after a restart, until
+     * {@link #commitRead()} is called.
+     *
+     * @param maxDocs most documents to return.
+     * @param maxBytes stop once the records read add up to this many bytes.
+     * @return the documents, none if everything appended was read.
+     * @throws IOException if a segment cannot be read.
+     */
+    public List<DocumentMetadata> read(int maxDocs, long maxBytes) throws IOException {
+        List<DocumentMetadata> docs = new ArrayList<>();
+        long bytes = 0;
+        while (docs.size() < maxDocs && bytes < maxBytes) {
+            long endSegment;
+            int endPosition;
+            synchronized (publishLock) {
+                endSegment = publishedSegment;
+                endPosition = publishedPosition;
+            }
+            if (readSegment == endSegment && readPosition >= endPosition) {
+                break;
+            }
+
+            if (readBuffer == null) {
+                readBuffer = map(readSegment, 0, false);
+            }
+            int length = readPosition + HEADER_BYTES <= readBuffer.capacity()
+                    ? readBuffer.getInt(readPosition) : END_OF_SEGMENT;
+            if (length <= 0) {
+                if (readSegment < endSegment) {
+                    readSegment++;
+                    readPosition = 0;
+                    readBuffer = null;
+                    continue;
+                }
+                logger.error("Spool {} has no record at {} of segment {}", dir, readPosition, readSegment);
+                readPosition = endPosition;
+                break;
+            }
+
+            if (!readPayload(readBuffer, readPosition, length)) {
+                logger.error("Spool {} has a damaged record at {} of segment {}, skipping the rest of the segment",
+                        dir, readPosition, readSegment);
+                readPosition = readSegment < endSegment ? readBuffer.capacity() : endPosition;
+                continue;
+            }
+            docs.add(decode());
+            bytes += length;
+            readPosition += HEADER_BYTES + length;
+        }
+        if (payload.length > MAX_RETAINED_RECORD_BYTES) {
+            payload = new byte[INITIAL_RECORD_BYTES];
+        }
+        return docs;
+    }
+
+    /**
+     * Record that every document read so far was delivered, and delete the segments holding only such documents.
+     *
+     * @throws IOException if the read offset cannot be written.
+     */
+    public void commitRead() throws IOException {
+        File tmp = new File(dir, READ_OFFSET + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(readSegment + " " + readPosition + "\n");
+            writer.flush();
+            out.getFD().sync();
+        }
+        File offset = new File(dir, READ_OFFSET);
+        if (!tmp.renameTo(offset) && !(offset.delete() && tmp.renameTo(offset))) {
+            throw new IOException("Cannot replace " + offset);
+        }
+        if (readSegment > committedSegment) {
+            deleteSegmentsBefore(readSegment);
+            committedSegment = readSegment;
+        }
+    }
+
+    /**
+     * @return true if documents were appended that were not read yet.
+     */
+    public boolean hasUnread() {
+        synchronized (publishLock) {
+            return readSegment < publishedSegment || readPosition < publishedPosition;
+        }
+    }
+
+    @Override
+    public void close() {
+        sync();
+    }
+
+    private void startSegment() throws IOException {
+        if (writeBuffer.position() + 4 <= writeBuffer.capacity()) {
+            writeBuffer.putInt(writeBuffer.position(), END_OF_SEGMENT);
+        }
+        writeBuffer.force();
+        unsynced = false;
+        writeSegment++;
+        writeBuffer = map(writeSegment, Math.max(segmentBytes, HEADER_BYTES + recordLength), true);
+        publish(writeSegment, 0);
+    }
+
+    private void publish(long segment, int position) {
+        synchronized (publishLock) {
+            publishedSegment = segment;
+            publishedPosition = position;
+        }
+    }
+
+    /**
+     * @return the position after the last intact record from the given one, or END_OF_SEGMENT if the segment was
+     * ended.
+     */
+    private int findEnd(MappedByteBuffer buffer, int position) {
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == END_OF_SEGMENT) {
+                return END_OF_SEGMENT;
+            }
+            if (length <= 0 || !readPayload(buffer, position, length)) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    /**
+     * Copy the payload of the record at the position and check its CRC.
+     */
+    private boolean readPayload(MappedByteBuffer buffer, int position, int length) {
+        if (position + HEADER_BYTES + (long) length > buffer.capacity()) {
+            return false;
+        }
+        if (payload.length < length) {
+            payload = new byte[length];
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(position + HEADER_BYTES);
+        in.get(payload, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private void encode(Metadata metadata) {
+        recordLength = 0;
+        String[] names = metadata.names();
+        writeVarInt(names.length);
+        for (String name : names) {
+            writeString(name);
+            String[] values = metadata.getValues(name);
+            writeVarInt(values.length);
+            for (String value : values) {
+                writeString(value != null ? value : "");
+            }
+        }
+    }
+
+    private void writeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        ensureRecord(bytes.length);
+        System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+        recordLength += bytes.length;
+    }
+
+    private void writeVarInt(int value) {
+        ensureRecord(5);
+        while ((value & ~0x7F) != 0) {
+            record[recordLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        record[recordLength++] = (byte) value;
+    }
+
+    private void ensureRecord(int more) {
+        if (recordLength + more > record.length) {
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + more));
+        }
+    }
+
+    private DocumentMetadata decode() {
+        int[] position = {0};
+        DocumentMetadata metadata = new DocumentMetadata();
+        int fields = readVarInt(position);
+        for (int i = 0; i < fields; i++) {
+            String name = readString(position);
+            int values = readVarInt(position);
+            for (int j = 0; j < values; j++) {
+                metadata.add(name, readString(position));
+            }
+        }
+        return metadata;
+    }
+
+    private String readString(int[] position) {
+        int length = readVarInt(position);
+        String s = new String(payload, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return s;
+    }
+
+    private int readVarInt(int[] position) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = payload[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * @param size size of a new segment, 0 to map an existing one as it is.
+     */
+    private MappedByteBuffer map(long segment, int size, boolean write) throws IOException {
+        File file = segmentFile(segment);
+        try (RandomAccessFile raf = new RandomAccessFile(file, write ? "rw" : "r")) {
+            long length = Math.max(raf.length(), size);
+            return raf.getChannel().map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, length);
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("%019d", segment) + SUFFIX);
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return segment and position of the first document not delivered, 0 0 for a new spool.
+     */
+    private long[] loadReadOffset() throws IOException {
+        File offset = new File(dir, READ_OFFSET);
+        if (!offset.isFile()) {
+            return new long[] {0, 0};
+        }
+        String[] parts = new String(Files.readAllBytes(offset.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+        try {
+            return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Damaged " + offset, e);
+        }
+    }
+
+    private void deleteSegmentsBefore(long segment) {
+        for (Long old : listSegments()) {
+            if (old < segment && !segmentFile(old).delete()) {
+                logger.warn("Cannot delete spool segment {}", segmentFile(old));
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.threeveed.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tika.metadata.Metadata;
+
+/**
+ *
+ * Solr binary update format, as read by JavaBinUpdateRequestCodec: a named list with empty "params", no deletes and a
+ * "docs" iterator of SolrInputDocuments.
+ *
+ * Only the subset of the JavaBin codec needed for string fields is implemented, so there is no dependency on SolrJ.
+ *
+ */
+public class JavaBinUpdateSerializer extends UpdateSerializer {
+
+    private static final byte VERSION = 2;
+    private static final int NULL = 0;
+    private static final int FLOAT = 8;
+    private static final int ITERATOR = 14;
+    private static final int END = 15;
+    private static final int SOLRINPUTDOC = 16;
+    private static final int STR = 1 << 5;
+    private static final int NAMED_LST = 6 << 5;
+    private static final int EXTERN_STRING = 7 << 5;
+
+    @Override
+    public String getContentType() {
+        return "application/javabin";
+    }
+
+    @Override
+    public void write(List<? extends Metadata> docs, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 16 * 1024));
+        Map<String, Integer> externStrings = new HashMap<>();
+
+        data.writeByte(VERSION);
+        writeTag(data, NAMED_LST, 4);
+
+        writeExternString(data, externStrings, "params");
+        writeTag(data, NAMED_LST, 0);
+        writeExternString(data, externStrings, "delByIdMap");
+        data.writeByte(NULL);
+        writeExternString(data, externStrings, "delByQ");
+        data.writeByte(NULL);
+
+        writeExternString(data, externStrings, "docs");
+        data.writeByte(ITERATOR);
+        for (Metadata doc : docs) {
+            int fields = 0;
+            for (String name : doc.names()) {
+                if (doc.get(name) != null) {
+                    fields++;
+                }
+            }
+
+            writeTag(data, SOLRINPUTDOC, fields);
+            data.writeByte(FLOAT);
+            data.writeFloat(1.0f);
+            for (String name : doc.names()) {
+                String value = doc.get(name);
+                if (value != null) {
+                    writeExternString(data, externStrings, name);
+                    writeString(data, value);
+                }
+            }
+        }
+        data.writeByte(END);
+        data.flush();
+    }
+
+    private static void writeTag(DataOutputStream data, int tag, int size) throws IOException {
+        if ((tag & 0xe0) != 0) {
+            if (size < 0x1f) {
+                data.writeByte(tag | size);
+            } else {
+                data.writeByte(tag | 0x1f);
+                writeVInt(data, size - 0x1f);
+            }
+        } else {
+            data.writeByte(tag);
+            writeVInt(data, size);
+        }
+    }
+
+    private static void writeVInt(DataOutputStream data, int i) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            data.writeByte((byte) ((i & 0x7f) | 0x80));
+            i >>>= 7;
+        }
+        data.writeByte((byte) i);
+    }
+
+    /**
+     * Field names repeat in every document, so they are written once and referred to by index afterwards.
+     */
+    private static void writeExternString(DataOutputStream data, Map<String, Integer> externStrings, String s)
+            throws IOException {
+        Integer index = externStrings.get(s);
+        if (index == null) {
+            writeTag(data, EXTERN_STRING, 0);
+            writeString(data, s);
+            externStrings.put(s, externStrings.size() + 1);
+        } else {
+            writeTag(data, EXTERN_STRING, index);
+        }
+    }
+
+    /**
+     * Write a UTF-8 string without materializing its bytes: one pass to compute the encoded length that goes into the
+     * tag, one pass to encode.
+     */
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        int length = s.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (!isAllowed(c)) {
+                continue;
+            }
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+
+        writeTag(data, STR, bytes);
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (!isAllowed(c)) {
+                continue;
+            }
+            if (c < 0x80) {
+                data.write(c);
+            } else if (c < 0x800) {
+                data.write(0xC0 | (c >> 6));
+                data.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                data.write(0xF0 | (codePoint >> 18));
+                data.write(0x80 | ((codePoint >> 12) & 0x3F));
+                data.write(0x80 | ((codePoint >> 6) & 0x3F));
+                data.write(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, replaced the same way String.getBytes() would
+                data.write('?');
+            } else {
+                data.write(0xE0 | (c >> 12));
+                data.write(0x80 | ((c >> 6) & 0x3F));
+                data.write(0x80 | (c & 0x3F));
+            }
+        }
+    }
+}
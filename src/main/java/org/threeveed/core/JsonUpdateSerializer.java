@@ -0,0 +1,90 @@
+package org.threeveed.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.tika.metadata.Metadata;
+
+/**
+ *
+ * Solr JSON update format: an array of flat documents, [{"id":"...","field":"value"}, ...].
+ *
+ */
+public class JsonUpdateSerializer extends UpdateSerializer {
+
+    @Override
+    public String getContentType() {
+        return "application/json; charset=UTF-8";
+    }
+
+    @Override
+    public void write(List<? extends Metadata> docs, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16 * 1024);
+        writer.write('[');
+        boolean firstDoc = true;
+        for (Metadata doc : docs) {
+            if (!firstDoc) {
+                writer.write(',');
+            }
+            firstDoc = false;
+
+            writer.write('{');
+            boolean firstField = true;
+            for (String name : doc.names()) {
+                String value = doc.get(name);
+                if (value == null) {
+                    continue;
+                }
+                if (!firstField) {
+                    writer.write(',');
+                }
+                firstField = false;
+
+                writeString(writer, name);
+                writer.write(':');
+                writeString(writer, value);
+            }
+            writer.write('}');
+        }
+        writer.write(']');
+        writer.flush();
+    }
+
+    /**
+     * Write a quoted JSON string, escaping and dropping invalid characters in one pass.
+     */
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        int length = value.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c == '\n') {
+                replacement = "\\n";
+            } else if (c == '\r') {
+                replacement = "\\r";
+            } else if (c == '\t') {
+                replacement = "\\t";
+            } else if (!isAllowed(c)) {
+                replacement = "";
+            } else {
+                continue;
+            }
+            writer.write(value, runStart, i - runStart);
+            writer.write(replacement);
+            runStart = i + 1;
+        }
+        writer.write(value, runStart, length - runStart);
+        writer.write('"');
+    }
+}
@@ -0,0 +1,363 @@
+package org.threeveed.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.tika.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Indexes into a Lucene index on the local disk instead of a Solr server, for cases small enough for one machine.
+ *
+ * All sinks of a worker JVM writing to the same directory share one IndexWriter, so the executors index concurrently
+ * into a single index. Documents are written as they are added; a batch is only reported done once a commit made it
+ * durable, and the writer commits every commitIntervalMs, which keeps the cost of commits independent of the number
+ * of executors. The interval has to stay well below topology.message.timeout.secs. As a document is only safe once
+ * committed, documents are handed over in batches of up to maxBatchDocs or once the oldest has waited lingerMs, and
+ * all batches handed over before a commit share the one future that commit completes.
+ *
+ * Metadata fields are stored and indexed as single terms, except the text, the subject and long values, which are
+ * analyzed. Not thread safe, each executor uses its own sink.
+ *
+ */
+public class LuceneIndexSink implements IndexSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(LuceneIndexSink.class);
+    public static final int DEFAULT_RAM_BUFFER_MB = 64;
+    public static final int DEFAULT_COMMIT_INTERVAL_MS = 5000;
+    public static final int DEFAULT_MAX_BATCH_DOCS = 1000;
+    public static final int DEFAULT_MAX_BATCH_LINGER_MS = 1000;
+    private static final int MAX_TERM_CHARS = 1024;
+    private static final Map<String, SharedWriter> writers = new HashMap<>();
+
+    private final SharedWriter shared;
+    private int pendingDocs = 0;
+    private long batchStartTime;
+    private boolean failed = false;
+    private int maxBatchDocs = DEFAULT_MAX_BATCH_DOCS;
+    private long maxBatchLingerMs = DEFAULT_MAX_BATCH_LINGER_MS;
+
+    /**
+     * Open a sink on the index in the directory, creating the index if there is none yet. The first sink opened on a
+     * directory in the JVM decides the writer settings.
+     *
+     * @param indexDir directory of the index.
+     * @param ramBufferMb memory the writer buffers documents in before it writes a segment.
+     * @param commitIntervalMs time between two commits.
+     * @throws IOException if the index cannot be opened.
+     */
+    public LuceneIndexSink(File indexDir, int ramBufferMb, int commitIntervalMs) throws IOException {
+        String key = indexDir.getCanonicalPath();
+        synchronized (writers) {
+            SharedWriter writer = writers.get(key);
+            if (writer == null) {
+                writer = new SharedWriter(key, ramBufferMb, commitIntervalMs);
+                writers.put(key, writer);
+            }
+            writer.users++;
+            shared = writer;
+        }
+    }
+
+    /**
+     * Configure when the buffered documents are handed over to wait for the next commit.
+     *
+     * @param maxDocs hand over once this many documents were added.
+     * @param lingerMs hand over once the oldest document added has waited this long.
+     */
+    public void setBatchLimits(int maxDocs, long lingerMs) {
+        this.maxBatchDocs = Math.max(1, maxDocs);
+        this.maxBatchLingerMs = Math.max(0, lingerMs);
+    }
+
+    @Override
+    public void addData(Metadata metadata) {
+        if (pendingDocs == 0) {
+            batchStartTime = System.currentTimeMillis();
+        }
+        String id = metadata.get(DocumentMetadata.UNIQUE_ID);
+        Document doc = toDocument(metadata);
+        try {
+            if (id != null) {
+                doc.add(new StringField(SolrIndex.ID_FIELD, id, Field.Store.YES));
+                shared.writer.updateDocument(new Term(SolrIndex.ID_FIELD, id), doc);
+            } else {
+                shared.writer.addDocument(doc);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Cannot index " + id, e);
+            failed = true;
+        }
+        pendingDocs++;
+    }
+
+    @Override
+    public boolean isFlushNeeded() {
+        if (pendingDocs == 0) {
+            return false;
+        }
+        return pendingDocs >= maxBatchDocs || System.currentTimeMillis() - batchStartTime >= maxBatchLingerMs;
+    }
+
+    @Override
+    public Future<Boolean> flushAsync() {
+        boolean batchFailed = failed;
+        pendingDocs = 0;
+        failed = false;
+        if (batchFailed) {
+            return done(false);
+        }
+        return shared.awaitCommit();
+    }
+
+    @Override
+    public void commit() {
+        shared.commit();
+    }
+
+    @Override
+    public void close() {
+        synchronized (writers) {
+            if (--shared.users == 0) {
+                writers.remove(shared.key);
+                shared.close();
+            }
+        }
+    }
+
+    /**
+     * Delete the index in the directory, for a fresh run of the case. Must be called before any sink is opened on it.
+     *
+     * @param indexDir directory of the index.
+     */
+    public static void deleteAll(File indexDir) {
+        try (Directory directory = FSDirectory.open(indexDir.toPath());
+                IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer())
+                        .setOpenMode(IndexWriterConfig.OpenMode.CREATE))) {
+            writer.commit();
+        } catch (IOException e) {
+            logger.error("Cannot empty the index in " + indexDir, e);
+        }
+    }
+
+    /**
+     * List the emails of a custodian that are fully in the index, as
+     * {@link SolrIndex#getIndexedPaths(String, SolrIndex.PathFilter)} does. Only committed documents are seen.
+     *
+     * @param indexDir directory of the index.
+     * @param custodian custodian whose emails to list.
+     * @param filter paths to keep.
+     * @return the document_original_path of every such email.
+     */
+    public static Set<String> getIndexedPaths(File indexDir, String custodian, final SolrIndex.PathFilter filter) {
+        final Set<String> paths = new HashSet<>();
+        try (Directory directory = FSDirectory.open(indexDir.toPath())) {
+            if (!DirectoryReader.indexExists(directory)) {
+                return paths;
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                BooleanQuery query = new BooleanQuery.Builder()
+                        .add(new TermQuery(new Term(DocumentMetadata.CUSTODIAN, custodian)), BooleanClause.Occur.MUST)
+                        .add(new TermQuery(new Term(DocumentMetadata.HAS_PARENT, "true")),
+                                BooleanClause.Occur.MUST_NOT)
+                        .add(new TermQuery(new Term(DocumentMetadata.HAS_ATTACHMENTS, "true")),
+                                BooleanClause.Occur.MUST_NOT)
+                        .add(new WildcardQuery(new Term(DocumentMetadata.TEXT_CHUNK, "*")),
+                                BooleanClause.Occur.MUST_NOT)
+                        .add(new WildcardQuery(new Term(DocumentMetadata.PROCESSING_EXCEPTION, "*")),
+                                BooleanClause.Occur.MUST_NOT)
+                        .build();
+                final Set<String> fields = new HashSet<>();
+                fields.add(DocumentMetadata.DOCUMENT_ORIGINAL_PATH);
+                new IndexSearcher(reader).search(query, new SimpleCollector() {
+                    private LeafReader leaf;
+
+                    @Override
+                    protected void doSetNextReader(LeafReaderContext context) {
+                        leaf = context.reader();
+                    }
+
+                    @Override
+                    public void collect(int doc) throws IOException {
+                        String path = leaf.document(doc, fields).get(DocumentMetadata.DOCUMENT_ORIGINAL_PATH);
+                        if (path != null && filter.accept(path)) {
+                            paths.add(path);
+                        }
+                    }
+
+                    @Override
+                    public boolean needsScores() {
+                        return false;
+                    }
+                });
+            }
+        } catch (IOException e) {
+            logger.error("Problem listing the indexed documents of " + custodian + ", " + paths.size() + " found", e);
+        }
+        return paths;
+    }
+
+    private static Document toDocument(Metadata metadata) {
+        Document doc = new Document();
+        for (String name : metadata.names()) {
+            if (SolrIndex.ID_FIELD.equals(name)) {
+                continue;
+            }
+            boolean analyzed = DocumentMetadata.DOCUMENT_TEXT.equals(name) || DocumentMetadata.SUBJECT.equals(name);
+            for (String value : metadata.getValues(name)) {
+                if (value == null) {
+                    continue;
+                }
+                // a single term is limited in size, long values are searchable by their words only
+                if (analyzed || value.length() > MAX_TERM_CHARS) {
+                    doc.add(new TextField(name, value, Field.Store.YES));
+                } else {
+                    doc.add(new StringField(name, value, Field.Store.YES));
+                }
+            }
+        }
+        return doc;
+    }
+
+    private static Future<Boolean> done(final boolean result) {
+        FutureTask<Boolean> future = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return result;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    /**
+     * The writer of one index directory, with the thread committing it and the future of the next commit.
+     */
+    private static final class SharedWriter {
+        private final String key;
+        private final Directory directory;
+        private final IndexWriter writer;
+        private final ScheduledExecutorService committer;
+        private FutureTask<Boolean> nextCommit = newCommitFuture();
+        private volatile boolean lastCommitSucceeded;
+        private int users = 0;
+
+        private SharedWriter(String key, int ramBufferMb, int commitIntervalMs) throws IOException {
+            this.key = key;
+            // bulk indexing: more segments per tier and no compound files mean less merging and copying
+            TieredMergePolicy mergePolicy = new TieredMergePolicy();
+            mergePolicy.setSegmentsPerTier(20);
+            mergePolicy.setMaxMergeAtOnce(20);
+            mergePolicy.setNoCFSRatio(0.0);
+            IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer())
+                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+                    .setRAMBufferSizeMB(ramBufferMb)
+                    .setMergePolicy(mergePolicy)
+                    .setUseCompoundFile(false);
+            directory = FSDirectory.open(new File(key).toPath());
+            writer = new IndexWriter(directory, config);
+
+            committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "lucene-committer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            committer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            }, commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return future completed by the next commit, the same for every batch handed over before it.
+         */
+        private synchronized Future<Boolean> awaitCommit() {
+            return nextCommit;
+        }
+
+        private FutureTask<Boolean> newCommitFuture() {
+            return new FutureTask<>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return lastCommitSucceeded;
+                }
+            });
+        }
+
+        /**
+         * Commit, then complete the future the batches handed over so far wait on. Batches handed over during the
+         * commit wait for the next one, as their documents may have missed it.
+         */
+        private void commit() {
+            FutureTask<Boolean> committed;
+            synchronized (this) {
+                committed = nextCommit;
+                nextCommit = newCommitFuture();
+            }
+            synchronized (writer) {
+                try {
+                    writer.commit();
+                    lastCommitSucceeded = true;
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Cannot commit the index in " + key, e);
+                    lastCommitSucceeded = false;
+                }
+                committed.run();
+            }
+        }
+
+        private void close() {
+            committer.shutdown();
+            try {
+                committer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            commit();
+            try {
+                writer.close();
+                directory.close();
+            } catch (IOException e) {
+                logger.error("Cannot close the index in " + key, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.threeveed.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * Finds the messages of an mbox file in one sequential pass, without parsing them: every message is reported as the
+ * byte range between its "From " separator line and the empty line before the next one, so it can be read and parsed
+ * later, anywhere the file is visible.
+ *
+ * A line starting with "From " only separates messages at the start of the file or after an empty line; text before
+ * the first separator is skipped. Lines quoted as "&gt;From " inside the messages are left as they are. Not thread
+ * safe.
+ *
+ * A large mailbox can be split in byte ranges, see {@link #open(File, long, long)}: a message belongs to the range its
+ * separator line starts in, so every message is found in exactly one range, however the ranges cut the file.
+ *
+ */
+public class MboxSplitter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] SEPARATOR = {'F', 'r', 'o', 'm', ' '};
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private long position = 0;
+
+    private long messageStart = -1;
+    private long emptyLineStart = -1;
+    private boolean previousEmpty = true;
+    private boolean lineIsSeparator;
+    private boolean lineIsEmpty;
+
+    private long rangeStart = 0;
+    private long rangeEnd = Long.MAX_VALUE;
+    private boolean finished = false;
+
+    private long offset;
+    private long length;
+
+    public MboxSplitter(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Open a splitter over the messages whose separator line starts in a byte range of the file. The last of them
+     * extends past the end of the range, up to the next separator.
+     *
+     * @param file mbox file.
+     * @param start offset of the range.
+     * @param end offset just past the range.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static MboxSplitter open(File file, long start, long end) throws IOException {
+        // whether a separator right after start counts depends on the line before it, which starts at most 3 bytes
+        // earlier; the line the reading starts in is cut and never counts as empty
+        long from = Math.max(0, start - 3);
+        InputStream in = new FileInputStream(file);
+        try {
+            long skipped = 0;
+            while (skipped < from) {
+                long n = in.skip(from - skipped);
+                if (n <= 0) {
+                    break;
+                }
+                skipped += n;
+            }
+            MboxSplitter splitter = new MboxSplitter(in);
+            splitter.position = skipped;
+            splitter.rangeStart = start;
+            splitter.rangeEnd = end;
+            if (skipped > 0) {
+                splitter.readLine();
+                splitter.previousEmpty = false;
+            }
+            return splitter;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Advance to the next message.
+     *
+     * @return false at the end of the file.
+     */
+    public boolean next() throws IOException {
+        while (!finished) {
+            long lineStart = position;
+            if (!readLine()) {
+                finished = true;
+                if (messageStart < 0) {
+                    return false;
+                }
+                found(messageStart, previousEmpty && emptyLineStart >= messageStart ? emptyLineStart : position);
+                messageStart = -1;
+                return true;
+            }
+
+            // separators before the range end messages of the previous range
+            if (lineIsSeparator && previousEmpty && lineStart >= rangeStart) {
+                long previousStart = messageStart;
+                long previousEnd = emptyLineStart >= previousStart ? emptyLineStart : lineStart;
+                if (lineStart >= rangeEnd) {
+                    // the next range's first message
+                    finished = true;
+                    messageStart = -1;
+                } else {
+                    messageStart = position;
+                }
+                previousEmpty = false;
+                if (previousStart >= 0) {
+                    found(previousStart, previousEnd);
+                    return true;
+                }
+                continue;
+            }
+
+            if (lineIsEmpty) {
+                emptyLineStart = lineStart;
+            }
+            previousEmpty = lineIsEmpty;
+        }
+        return false;
+    }
+
+    /**
+     * @return offset of the current message in the file.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length in bytes of the current message.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void found(long start, long end) {
+        offset = start;
+        length = Math.max(0, end - start);
+    }
+
+    /**
+     * Consume one line, noting whether it is empty or starts with the separator.
+     *
+     * @return false at the end of the file.
+     */
+    private boolean readLine() throws IOException {
+        int lineLength = 0;
+        boolean separator = true;
+        boolean empty = true;
+        while (true) {
+            if (pos == limit && !fill()) {
+                if (lineLength == 0) {
+                    return false;
+                }
+                break;
+            }
+            byte b = buffer[pos++];
+            position++;
+            if (b == '\n') {
+                break;
+            }
+            if (lineLength < SEPARATOR.length && b != SEPARATOR[lineLength]) {
+                separator = false;
+            }
+            if (b != '\r') {
+                empty = false;
+            }
+            lineLength++;
+        }
+        lineIsSeparator = separator && lineLength >= SEPARATOR.length;
+        lineIsEmpty = empty;
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package org.threeveed.core;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ *
+ * One MIME part whose text still has to be extracted, as handed from the parsing stage to the extraction stage. Only
+ * the place of the part in the email travels, not its content: the extraction stage parses the email again from its
+ * {@link EmailSource} and streams the part from there into Tika.
+ *
+ */
+public class PartContent implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Role of the part in the email.
+     */
+    public enum Kind {
+        /** HTML body without a plain text alternative, its text belongs to the email itself. */
+        HTML_BODY,
+        /** Attachment, indexed as a child document. */
+        ATTACHMENT
+    }
+
+    private final Kind kind;
+    private final int index;
+    private final String name;
+    private final String contentType;
+
+    /**
+     * @param index position of the part among the parts of its kind, in the order {@link EmlParser#getHtmlParts()}
+     * or {@link EmlParser#getAttachments()} lists them.
+     */
+    public PartContent(Kind kind, int index, String name, String contentType) {
+        this.kind = kind;
+        this.index = index;
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Find the part in the email parsed again.
+     *
+     * @return the part, its content not decoded yet.
+     * @throws IOException if the email no longer has this part.
+     */
+    public EmlAttachment locate(EmlParser parser) throws IOException {
+        if (kind == Kind.HTML_BODY) {
+            if (index < parser.getHtmlParts().size()) {
+                return new EmlAttachment(name, contentType, parser.getHtmlParts().get(index));
+            }
+        } else if (index < parser.getAttachments().size()) {
+            EmlAttachment attachment = parser.getAttachments().get(index);
+            if (attachment.getName().equals(name)) {
+                return attachment;
+            }
+        }
+        throw new IOException("Part " + name + " is gone, the email changed since it was parsed");
+    }
+}
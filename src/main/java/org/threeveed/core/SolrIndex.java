@@ -1,14 +1,34 @@
 package org.threeveed.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.apache.tika.metadata.Metadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,106 +42,365 @@ import org.slf4j.LoggerFactory;
  * @author ivanl
  *
  */
-public class SolrIndex {
+public class SolrIndex implements IndexSink {
 
     private static final Logger logger = LoggerFactory.getLogger(SolrIndex.class);
     public static final String SOLR_INSTANCE_DIR = "shmcloud";
+    public static final String ID_FIELD = "id";
+    public static final int DEFAULT_MAX_BATCH_DOCS = 200;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BATCH_LINGER_MS = 2000;
+    public static final int DEFAULT_COMMIT_WITHIN_MS = 10000;
+    public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 2;
+    /** Case mode emptying the index of the case before processing. */
+    public static final String MODE_FRESH = "fresh";
+    /** Case mode keeping what is indexed, so an interrupted run can be continued. */
+    public static final String MODE_RESUME = "resume";
+    private static final int INDEXED_PAGE_ROWS = 1000;
     protected boolean supportMultipleProjects = true;
-    protected String checkedSolrCloudEndpoint = null;
     protected boolean isInited = false;
-    private static AtomicLong solrId = new AtomicLong(0);
-    private String updateUrl;
-    protected StringBuffer batchBuffer = new StringBuffer(1024 * 1024);
-    private String solrUrl;
+    private final String fallbackIdPrefix = UUID.randomUUID().toString() + "_";
+    private final AtomicLong fallbackIds = new AtomicLong(0);
+    private volatile String updateUrl;
+    protected List<Metadata> batch = new ArrayList<>();
+    private volatile String solrUrl;
+    private volatile String coreName;
     private String caseId;
+    private long batchChars = 0;
+    private long batchStartTime = 0;
+    private int maxBatchDocs = DEFAULT_MAX_BATCH_DOCS;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private long maxBatchLingerMs = DEFAULT_MAX_BATCH_LINGER_MS;
+    private int commitWithinMs = DEFAULT_COMMIT_WITHIN_MS;
+    private UpdateSerializer serializer = new XmlUpdateSerializer();
+    private CloseableHttpClient httpClient;
+    private ExecutorService sender;
+    private Semaphore inFlightBatches = new Semaphore(DEFAULT_MAX_IN_FLIGHT_BATCHES);
+    private BatchListener batchListener;
+    
+    /**
+     * Told about every batch sent, for monitoring. Called on the thread that sent the batch.
+     */
+    public interface BatchListener {
+        /**
+         * @param docs number of documents in the batch.
+         * @param chars characters of field values in the batch.
+         * @param status HTTP status of the last response, or 0 if no response was received.
+         * @param nanos time taken to send the batch.
+         */
+        void batchSent(int docs, long chars, int status, long nanos);
+    }
+    
+    /**
+     * Picks the paths {@link #getIndexedPaths(String, PathFilter)} keeps, e.g. those of one spout partition.
+     */
+    public interface PathFilter {
+        boolean accept(String path);
+    }
     
     public SolrIndex(String solrUrl, String caseId) {
+        this(solrUrl, caseId, HttpClientPool.getClient());
+    }
+    
+    public SolrIndex(String solrUrl, String caseId, CloseableHttpClient httpClient) {
+        this(solrUrl, caseId, SOLR_INSTANCE_DIR + "_" + caseId, httpClient);
+    }
+    
+    /**
+     * @param coreName core (or SolrCloud collection or replica) the documents go to, for an index spread over
+     * several cores.
+     */
+    public SolrIndex(String solrUrl, String caseId, String coreName, CloseableHttpClient httpClient) {
         this.solrUrl = solrUrl;
         this.caseId = caseId;
-        
-        init();
+        this.coreName = coreName;
+        this.httpClient = httpClient;
+    }
+    
+    /**
+     * Send later batches to another Solr node or core, e.g. to the new leader of a SolrCloud shard. Batches already
+     * in flight finish on the old one.
+     */
+    public void setEndpoint(String solrUrl, String coreName) {
+        this.solrUrl = solrUrl;
+        this.coreName = coreName;
+        resetUpdateUrl();
+    }
+
+    public String getCoreName() {
+        return coreName;
     }
     
     protected void sendPostCommand(String point, String param) throws SolrException {
-        HttpClient httpClient = new DefaultHttpClient();
+        HttpPost request = new HttpPost(point);
+        StringEntity params = new StringEntity(param, HTTP.UTF_8);
+        params.setContentType("text/xml");
 
-        try {
-            HttpPost request = new HttpPost(point);
-            StringEntity params = new StringEntity(param, HTTP.UTF_8);
-            params.setContentType("text/xml");
+        request.setEntity(params);
 
-            request.setEntity(params);
+        execute(request);
+    }
 
-            HttpResponse response = httpClient.execute(request);
-            if (response.getStatusLine().getStatusCode() != 200) {
-                logger.error("Solr Invalid Response: {}", response.getStatusLine().getStatusCode());
-            }
+    protected void sendPostCommand(String point, List<? extends Metadata> docs) throws SolrException {
+        HttpPost request = new HttpPost(point);
+        request.setEntity(new UpdateEntity(docs, serializer));
 
-        } catch (Exception ex) {
+        execute(request);
+    }
+
+    protected void sendGetCommand(String command) throws SolrException {
+        execute(new HttpGet(command));
+    }
+    
+    /**
+     * Execute the request on the pooled client. The response body is always consumed so the connection goes back to
+     * the pool.
+     */
+    private void execute(HttpUriRequest request) throws SolrException {
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                logger.error("Solr Invalid Response: {}", status);
+                throw new SolrException("Invalid response", status);
+            }
+        } catch (IOException ex) {
             logger.error("Problem sending request", ex);
             throw new SolrException("Problem sending request", ex);
         }
     }
+    
+    /**
+     * Configure when a batch of buffered documents is sent to Solr.
+     *
+     * @param maxDocs flush once this many documents are buffered.
+     * @param maxBytes flush once the field values of the buffered documents add up to this many characters.
+     * @param lingerMs flush once the oldest buffered document has waited this long.
+     */
+    public void setBatchLimits(int maxDocs, int maxBytes, long lingerMs) {
+        this.maxBatchDocs = Math.max(1, maxDocs);
+        this.maxBatchBytes = Math.max(1, maxBytes);
+        this.maxBatchLingerMs = Math.max(0, lingerMs);
+    }
 
-    protected void sendGetCommand(String command) throws SolrException {
-        HttpClient httpClient = new DefaultHttpClient();
+    /**
+     * Configure the commit policy. A positive value is sent as the commitWithin parameter with every batch and Solr
+     * decides when to open a new searcher; zero or less sends an explicit soft commit after every batch.
+     *
+     * @param commitWithinMs commitWithin in milliseconds.
+     */
+    public void setCommitWithin(int commitWithinMs) {
+        this.commitWithinMs = commitWithinMs;
+    }
+
+    /**
+     * Choose the format update requests are sent in.
+     *
+     * @param format xml (the default), json or javabin.
+     */
+    public void setUpdateFormat(String format) {
+        this.serializer = UpdateSerializer.forFormat(format);
+    }
 
+    public void setBatchListener(BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    /**
+     * Buffer the document for the next batch. Nothing is sent to Solr until {@link #flush()} is called, callers should
+     * check {@link #isFlushNeeded()} after each add.
+     *
+     * The document is indexed under its {@link DocumentMetadata#UNIQUE_ID}, so sending it again replaces it. A
+     * document without one gets an id unique to this index writer, which never collides with another worker's.
+     *
+     * @param metadata document to index.
+     */
+    public void addData(Metadata metadata) {
+        if (batch.isEmpty()) {
+            batchStartTime = System.currentTimeMillis();
+        }
+
+        String id = metadata.get(DocumentMetadata.UNIQUE_ID);
+        metadata.set(ID_FIELD, id != null ? id : fallbackIdPrefix + fallbackIds.incrementAndGet());
+        for (String name : metadata.names()) {
+            String data = metadata.get(name);
+            batchChars += name.length() + (data != null ? data.length() : 0);
+        }
+
+        batch.add(metadata);
+    }
+
+    /**
+     * @return number of documents buffered and not yet sent.
+     */
+    public int getBatchSize() {
+        return batch.size();
+    }
+
+    /**
+     * @return true if the current batch reached its document count, size or linger time limit.
+     */
+    public boolean isFlushNeeded() {
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        return batch.size() >= maxBatchDocs
+                || batchChars >= maxBatchBytes
+                || System.currentTimeMillis() - batchStartTime >= maxBatchLingerMs;
+    }
+
+    /**
+     * Limit the number of batches {@link #flushAsync()} may have on the wire at the same time.
+     *
+     * @param maxInFlight batches in flight before flushAsync() blocks.
+     */
+    public void setMaxInFlightBatches(int maxInFlight) {
+        this.inFlightBatches = new Semaphore(Math.max(1, maxInFlight));
+    }
+
+    /**
+     * Send all buffered documents to Solr in a single update request. The buffer is cleared whether or not the request
+     * succeeds, so the caller is responsible for replaying the documents on failure.
+     *
+     * @return true if the batch was accepted by Solr (or there was nothing to send), false otherwise.
+     */
+    public boolean flush() {
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        long chars = batchChars;
+        return sendBatch(takeBatch(), chars);
+    }
+
+    /**
+     * Hand the buffered documents to a background sender and return immediately, so the caller can keep preparing
+     * the next batch. Blocks only when the configured number of batches is already in flight.
+     *
+     * @return future telling whether the batch was accepted by Solr.
+     * @throws InterruptedException if interrupted while waiting for a free slot.
+     */
+    public Future<Boolean> flushAsync() throws InterruptedException {
+        if (batch.isEmpty()) {
+            FutureTask<Boolean> done = new FutureTask<>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return true;
+                }
+            });
+            done.run();
+            return done;
+        }
+
+        final Semaphore permits = inFlightBatches;
+        permits.acquire();
+        final long chars = batchChars;
+        final List<Metadata> docs = takeBatch();
         try {
-            HttpGet request = new HttpGet(command);
-            HttpResponse response = httpClient.execute(request);
-            if (response.getStatusLine().getStatusCode() != 200) {
-                logger.error("Solr Invalid Response: {}", response.getStatusLine().getStatusCode());
-                throw new SolrException("Invalid response");
+            return getSender().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        return sendBatch(docs, chars);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the background sender, waiting for batches still in flight.
+     */
+    public void close() {
+        if (sender != null) {
+            sender.shutdown();
+            try {
+                sender.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (IOException | SolrException ex) {
-            throw new SolrException("Problem sending request", ex);
         }
     }
-    
-    public void addData(Metadata metadata) {
+
+    private synchronized ExecutorService getSender() {
+        if (sender == null) {
+            sender = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "solr-sender-" + caseId);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sender;
+    }
+
+    /**
+     * Hand over the buffered documents and start a new batch.
+     */
+    private List<Metadata> takeBatch() {
+        List<Metadata> docs = batch;
+        batch = new ArrayList<>();
+        batchChars = 0;
+        return docs;
+    }
+
+    private boolean sendBatch(List<Metadata> docs, long chars) {
         if (updateUrl == null) {
-            if (isInited) {
-                System.err.println("No updateUrl set");
-                return;
-            }
             resetUpdateUrl();
         }
 
+        long start = System.nanoTime();
+        int status = 200;
         try {
-            StringBuilder param = new StringBuilder();
-            param.append("<add>");
-            param.append("<doc>");
-            param.append("<field name=\"id\">SOLRID_");
-            
-            param.append(caseId).append("_");
-            param.append(solrId.incrementAndGet());
-            param.append("</field>");
-
-            String[] metadataNames = metadata.names();
-            for (String name : metadataNames) {
-                String data = metadata.get(name);
-                param.append("<field name=\"");
-                param.append(name);
-                param.append("\">");
-                param.append("<![CDATA[");
-                param.append(filterNotCorrectCharacters(data));
-                param.append("]]></field>");
+            if (commitWithinMs > 0) {
+                sendPostCommand(updateUrl + "?commitWithin=" + commitWithinMs, docs);
+            } else {
+                sendPostCommand(updateUrl, docs);
+                sendPostCommand(updateUrl, "<commit softCommit=\"true\"/>");
+            }
+            logger.debug("Sent batch of {} documents", docs.size());
+            return true;
+        } catch (SolrException e) {
+            status = e.getStatus();
+            logger.error("Error sending batch of " + docs.size() + " documents", e);
+            return false;
+        } finally {
+            if (batchListener != null) {
+                batchListener.batchSent(docs.size(), chars, status, System.nanoTime() - start);
             }
+        }
+    }
 
-            param.append("</doc></add>");
+    /**
+     * Issue a hard commit, making everything sent so far durable.
+     */
+    public void commit() {
+        if (updateUrl == null) {
+            resetUpdateUrl();
+        }
 
-            sendPostCommand(updateUrl, param.toString());
+        try {
             sendPostCommand(updateUrl, "<commit/>");
         } catch (SolrException e) {
             logger.error("Error", e);
         }
     }
 
-    private String filterNotCorrectCharacters(String data) {
-        return data.replaceAll("[\\x00-\\x09\\x11\\x12\\x14-\\x1F\\x7F]", "");
-    }
-
-    public void init() {
+    /**
+     * Set up the index of the case: create its core and, for a fresh run, delete everything indexed before. Meant to
+     * be called once per topology, before it is submitted; index writers only send documents.
+     *
+     * @param fresh true to empty the index, false to keep its documents and resume.
+     */
+    public void init(boolean fresh) {
         isInited = true;
         String command = null;
 
@@ -129,46 +408,174 @@ public class SolrIndex {
             String endpoint = getSolrEndpoint();
 
             if (supportMultipleProjects) {
-                command = endpoint + "solr/admin/cores?action=CREATE&name=" + SOLR_INSTANCE_DIR + "_" + caseId
+                String dataDir = coreName.startsWith(SOLR_INSTANCE_DIR + "_")
+                        ? coreName.substring(SOLR_INSTANCE_DIR.length() + 1) : coreName;
+                command = endpoint + "solr/admin/cores?action=CREATE&name=" + coreName
                         + "&instanceDir=" + SOLR_INSTANCE_DIR
-                        + "&config=solrconfig.xml&dataDir=data_" + caseId
+                        + "&config=solrconfig.xml&dataDir=data_" + dataDir
                         + "&schema=schema.xml";
                 try {
                     sendGetCommand(command);
                 } catch (Exception ex) {
-                    logger.error("Unable to create Core: {}", SOLR_INSTANCE_DIR + "_" + caseId);
-                    logger.error("Core command: {}", command);
+                    // when resuming the core is expected to exist already
+                    if (fresh) {
+                        logger.error("Unable to create Core: {}", coreName);
+                        logger.error("Core command: {}", command);
+                    } else {
+                        logger.info("Core {} not created, resuming on the existing one", coreName);
+                    }
                 }
-
-                this.updateUrl = endpoint + "solr/" + SOLR_INSTANCE_DIR + "_" + caseId + "/update";
             } else {
                 sendGetCommand(endpoint + "solr/admin/ping");
+            }
+            resetUpdateUrl();
 
-                this.updateUrl = endpoint + "solr/update";
+            if (fresh) {
+                deleteAll();
             }
+        } catch (SolrException se) {
+            logger.error("Problem with SOLR init", se);
+        }
+    }
 
-            String deleteAll = "<delete><query>id:[*TO *]</query></delete>";
-            sendPostCommand(updateUrl, deleteAll);
-            sendPostCommand(updateUrl, "<commit/>");
+    /**
+     * Set up the index of the case as a SolrCloud collection, named like the core, using the shmcloud configuration
+     * uploaded to ZooKeeper. As with {@link #init(boolean)}, a fresh run deletes everything indexed before.
+     *
+     * @param shards number of shards of the collection, if it has to be created.
+     * @param fresh true to empty the index, false to keep its documents and resume.
+     */
+    public void initCollection(int shards, boolean fresh) {
+        isInited = true;
+        String command = null;
+
+        try {
+            command = getSolrEndpoint() + "solr/admin/collections?action=CREATE&name=" + coreName
+                    + "&numShards=" + shards + "&collection.configName=" + SOLR_INSTANCE_DIR;
+            try {
+                sendGetCommand(command);
+            } catch (SolrException ex) {
+                if (fresh) {
+                    logger.error("Unable to create Collection: {}", coreName);
+                    logger.error("Collection command: {}", command);
+                } else {
+                    logger.info("Collection {} not created, resuming on the existing one", coreName);
+                }
+            }
+            resetUpdateUrl();
+
+            if (fresh) {
+                deleteAll();
+            }
         } catch (SolrException se) {
             logger.error("Problem with SOLR init", se);
         }
     }
 
-    protected void resetUpdateUrl() {
+    private void deleteAll() throws SolrException {
+        String deleteAll = "<delete><query>id:[*TO *]</query></delete>";
+        sendPostCommand(updateUrl, deleteAll);
+        sendPostCommand(updateUrl, "<commit/>");
+    }
+
+    /**
+     * List the emails of a custodian that are fully in the index: top level documents with no attachments, no text
+     * chunks and no processing exception, whose index entry is complete on its own. An email with children is left
+     * out, since a crash may have come between indexing it and its children, and so is one indexed as a failure, to
+     * be tried again.
+     *
+     * A failure is logged and ends the listing early; the paths read until then are returned, as reprocessing an
+     * email only overwrites it.
+     *
+     * @param custodian custodian whose emails to list.
+     * @param filter paths to keep, applied page by page so the others are never held.
+     * @return the document_original_path of every such email.
+     */
+    public Set<String> getIndexedPaths(String custodian, PathFilter filter) {
+        Set<String> paths = new HashSet<>();
+        String quoted = "\"" + custodian.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
         try {
-            String endpoint = getSolrEndpoint();
+            String query = getCoreUrl() + "/select?q=*:*&wt=xml&sort=id+asc&rows=" + INDEXED_PAGE_ROWS
+                    + "&fl=" + DocumentMetadata.DOCUMENT_ORIGINAL_PATH
+                    + "&fq=" + encode(DocumentMetadata.CUSTODIAN + ":" + quoted)
+                    + "&fq=" + encode("-" + DocumentMetadata.HAS_PARENT + ":true")
+                    + "&fq=" + encode("-" + DocumentMetadata.HAS_ATTACHMENTS + ":true")
+                    + "&fq=" + encode("-" + DocumentMetadata.TEXT_CHUNK + ":*")
+                    + "&fq=" + encode("-" + DocumentMetadata.PROCESSING_EXCEPTION + ":*");
+            String cursor = "*";
+            while (true) {
+                String next = readIndexedPage(query + "&cursorMark=" + encode(cursor), filter, paths);
+                if (next == null || next.equals(cursor)) {
+                    break;
+                }
+                cursor = next;
+            }
+        } catch (SolrException | IOException | XMLStreamException e) {
+            logger.error("Problem listing the indexed documents of " + custodian + ", " + paths.size() + " found", e);
+        }
+        return paths;
+    }
 
-            if (supportMultipleProjects) {
-                this.updateUrl = endpoint + "solr/" + SOLR_INSTANCE_DIR + "_" + caseId + "/update";
-            } else {
-                this.updateUrl = endpoint + "solr/update";
+    /**
+     * Read one page of a cursor query, adding the document paths the filter accepts.
+     *
+     * @return the cursor of the next page, or null if the response has none.
+     */
+    private String readIndexedPage(String query, PathFilter filter, Set<String> paths)
+            throws SolrException, IOException, XMLStreamException {
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(query))) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                EntityUtils.consume(response.getEntity());
+                throw new SolrException("Invalid response", status);
+            }
+            String nextCursor = null;
+            try (InputStream in = response.getEntity().getContent()) {
+                XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(in);
+                while (xml.hasNext()) {
+                    if (xml.next() != XMLStreamConstants.START_ELEMENT || !"str".equals(xml.getLocalName())) {
+                        continue;
+                    }
+                    String name = xml.getAttributeValue(null, "name");
+                    if (DocumentMetadata.DOCUMENT_ORIGINAL_PATH.equals(name)) {
+                        String path = xml.getElementText();
+                        if (filter.accept(path)) {
+                            paths.add(path);
+                        }
+                    } else if ("nextCursorMark".equals(name)) {
+                        nextCursor = xml.getElementText();
+                    }
+                }
+                xml.close();
             }
+            return nextCursor;
+        }
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    protected void resetUpdateUrl() {
+        try {
+            this.updateUrl = getCoreUrl() + "/update";
         } catch (SolrException se) {
             logger.error("Problem with SOLR resetUpdateUrl: ", se);
         }
     }
 
+    /**
+     * @return base URL of the core of the case, without a trailing slash.
+     */
+    private String getCoreUrl() throws SolrException {
+        String endpoint = getSolrEndpoint();
+
+        if (supportMultipleProjects) {
+            return endpoint + "solr/" + coreName;
+        }
+        return endpoint + "solr";
+    }
+
     protected String getSolrEndpoint() throws SolrException {
         String endpoint = solrUrl;
 
@@ -186,13 +593,27 @@ public class SolrIndex {
     private static final class SolrException extends Exception {
 
         private static final long serialVersionUID = 5904372392164798773L;
+        private final int status;
 
         public SolrException(String message) {
+            this(message, 0);
+        }
+
+        public SolrException(String message, int status) {
             super(message);
+            this.status = status;
         }
 
         public SolrException(String message, Exception e) {
             super(message, e);
+            this.status = 0;
+        }
+
+        /**
+         * @return HTTP status Solr answered with, or 0 if there was no response.
+         */
+        public int getStatus() {
+            return status;
         }
     }
 }
@@ -0,0 +1,319 @@
+package org.threeveed.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Spreads the documents of a case over several Solr targets by a hash of their id, so indexing is not bound to the
+ * write path of a single core. Every target is a {@link SolrIndex} with its own batch and sender, and the connections
+ * to every Solr node come from that node's route in the shared pool.
+ *
+ * With plain cores the case is split into one core per shard, shmcloud_case_shardN, spread round robin over the
+ * given Solr nodes; a single shard keeps the usual shmcloud_case core. With SolrCloud the case is a collection and
+ * every document is sent straight to the leader of the shard Solr's compositeId router puts it in, read from the
+ * cluster state.
+ *
+ * A document goes to the same target as long as the layout stays the same, so a replayed document overwrites itself:
+ * the number of shards of a case must not change between runs.
+ *
+ */
+public class SolrIndexRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SolrIndexRouter.class);
+
+    private final String[] nodeUrls;
+    private final String caseId;
+    private final int shards;
+    private final boolean cloud;
+    private final CloseableHttpClient httpClient;
+    private final SolrIndex collection;
+    private List<SolrIndex> targets;
+    private List<Shard> cloudShards;
+
+    /**
+     * @param solrUrls comma separated URLs of the Solr nodes.
+     * @param caseId case to index.
+     * @param shards number of cores or SolrCloud shards, 0 or less for one per node.
+     * @param cloud true if the nodes form a SolrCloud cluster.
+     */
+    public SolrIndexRouter(String solrUrls, String caseId, int shards, boolean cloud, CloseableHttpClient httpClient) {
+        this.nodeUrls = solrUrls.trim().split("\\s*,\\s*");
+        this.caseId = caseId;
+        this.shards = shards > 0 ? shards : nodeUrls.length;
+        this.cloud = cloud;
+        this.httpClient = httpClient;
+        this.collection = new SolrIndex(nodeUrls[0], caseId, httpClient);
+    }
+
+    /**
+     * Set up the index of the case, see {@link SolrIndex#init(boolean)}. Called once per topology.
+     *
+     * @param fresh true to empty the index, false to keep its documents and resume.
+     */
+    public void init(boolean fresh) {
+        if (cloud) {
+            collection.initCollection(shards, fresh);
+            return;
+        }
+        for (SolrIndex target : getTargets()) {
+            target.init(fresh);
+        }
+    }
+
+    /**
+     * @return the index writers documents are routed to, in a fixed order. With SolrCloud the cluster state is read
+     * on the first call.
+     */
+    public synchronized List<SolrIndex> getTargets() {
+        if (targets != null) {
+            return targets;
+        }
+
+        targets = new ArrayList<>();
+        if (!cloud) {
+            for (int i = 0; i < shards; i++) {
+                String coreName = shards == 1 ? SolrIndex.SOLR_INSTANCE_DIR + "_" + caseId
+                        : SolrIndex.SOLR_INSTANCE_DIR + "_" + caseId + "_shard" + (i + 1);
+                targets.add(new SolrIndex(nodeUrls[i % nodeUrls.length], caseId, coreName, httpClient));
+            }
+            return targets;
+        }
+
+        try {
+            cloudShards = readShards();
+            for (Shard shard : cloudShards) {
+                targets.add(new SolrIndex(shard.nodeUrl, caseId, shard.core, httpClient));
+            }
+        } catch (IOException | XMLStreamException e) {
+            logger.error("Cannot read the shards of collection " + collection.getCoreName(), e);
+        }
+        if (targets.isEmpty()) {
+            // any node forwards the documents to the right leader, one hop later
+            logger.warn("Sending all documents of collection {} through {}", collection.getCoreName(), nodeUrls[0]);
+            cloudShards = null;
+            targets.add(new SolrIndex(nodeUrls[0], caseId, collection.getCoreName(), httpClient));
+        }
+        return targets;
+    }
+
+    /**
+     * @param id document id, may be null.
+     * @return position of the target the document goes to in {@link #getTargets()}.
+     */
+    public int route(String id) {
+        List<SolrIndex> all = getTargets();
+        if (id == null || all.size() == 1) {
+            return 0;
+        }
+        if (cloudShards == null) {
+            return (id.hashCode() & Integer.MAX_VALUE) % all.size();
+        }
+
+        int hash = murmurHash3(id.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < cloudShards.size(); i++) {
+            Shard shard = cloudShards.get(i);
+            if (hash >= shard.min && hash <= shard.max) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Look the shard leaders up again after a failed send, so later batches follow a leader that moved. A no-op
+     * without SolrCloud; a change in the shards themselves is only logged, documents still reach the right shard
+     * through the leader they are sent to.
+     */
+    public synchronized void refresh() {
+        if (cloudShards == null) {
+            return;
+        }
+        try {
+            List<Shard> current = readShards();
+            if (current.size() != cloudShards.size()) {
+                logger.warn("Collection {} now has {} shards instead of {}", collection.getCoreName(),
+                        current.size(), cloudShards.size());
+                return;
+            }
+            for (int i = 0; i < current.size(); i++) {
+                Shard shard = current.get(i);
+                if (!shard.core.equals(targets.get(i).getCoreName())) {
+                    logger.info("Leader of {} is now {} on {}", shard.name, shard.core, shard.nodeUrl);
+                }
+                targets.get(i).setEndpoint(shard.nodeUrl, shard.core);
+            }
+        } catch (IOException | XMLStreamException e) {
+            logger.error("Cannot read the shards of collection " + collection.getCoreName(), e);
+        }
+    }
+
+    /**
+     * @return see {@link SolrIndex#getIndexedPaths(String, SolrIndex.PathFilter)}, over the whole case.
+     */
+    public Set<String> getIndexedPaths(String custodian, SolrIndex.PathFilter filter) {
+        if (cloud) {
+            return collection.getIndexedPaths(custodian, filter);
+        }
+        Set<String> paths = new HashSet<>();
+        for (SolrIndex target : getTargets()) {
+            paths.addAll(target.getIndexedPaths(custodian, filter));
+        }
+        return paths;
+    }
+
+    /**
+     * Read the hash range and leader of every active shard of the collection from the CLUSTERSTATUS response.
+     *
+     * @return the shards ordered by the start of their range.
+     */
+    private List<Shard> readShards() throws IOException, XMLStreamException {
+        String base = nodeUrls[0].endsWith("/") ? nodeUrls[0] : nodeUrls[0] + "/";
+        String command = base + "solr/admin/collections?action=CLUSTERSTATUS&wt=xml&collection="
+                + collection.getCoreName();
+        List<Shard> found = new ArrayList<>();
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(command))) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consume(response.getEntity());
+                throw new IOException("CLUSTERSTATUS answered " + response.getStatusLine().getStatusCode());
+            }
+            try (InputStream in = response.getEntity().getContent()) {
+                XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(in);
+                // names of the enclosing lst elements: cluster, collections, <collection>, shards, <shard>, ...
+                List<String> path = new ArrayList<>();
+                Shard shard = null;
+                String core = null;
+                String nodeUrl = null;
+                boolean leader = false;
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.END_ELEMENT && "lst".equals(xml.getLocalName())) {
+                        boolean replica = path.size() == 7 && "replicas".equals(path.get(5));
+                        path.remove(path.size() - 1);
+                        if (replica && leader && shard != null && core != null && nodeUrl != null) {
+                            shard.core = core;
+                            shard.nodeUrl = nodeUrl;
+                        } else if (path.size() == 4 && shard != null) {
+                            if (shard.active && shard.core != null) {
+                                found.add(shard);
+                            }
+                            shard = null;
+                        }
+                        continue;
+                    }
+                    if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String name = xml.getAttributeValue(null, "name");
+                    if ("lst".equals(xml.getLocalName())) {
+                        path.add(name);
+                        if (path.size() == 5 && "shards".equals(path.get(3))) {
+                            shard = new Shard(name);
+                        } else if (path.size() == 7) {
+                            core = null;
+                            nodeUrl = null;
+                            leader = false;
+                        }
+                        continue;
+                    }
+                    if (shard == null || name == null) {
+                        continue;
+                    }
+                    if (path.size() == 5 && "range".equals(name)) {
+                        String[] range = xml.getElementText().split("-");
+                        shard.min = (int) Long.parseLong(range[0], 16);
+                        shard.max = (int) Long.parseLong(range[1], 16);
+                    } else if (path.size() == 5 && "state".equals(name)) {
+                        shard.active = "active".equals(xml.getElementText());
+                    } else if (path.size() == 7 && "core".equals(name)) {
+                        core = xml.getElementText();
+                    } else if (path.size() == 7 && "base_url".equals(name)) {
+                        String baseUrl = xml.getElementText();
+                        nodeUrl = baseUrl.endsWith("/solr") ? baseUrl.substring(0, baseUrl.length() - 4) : baseUrl;
+                    } else if (path.size() == 7 && "leader".equals(name)) {
+                        leader = Boolean.parseBoolean(xml.getElementText());
+                    }
+                }
+                xml.close();
+            }
+        }
+        Collections.sort(found, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard a, Shard b) {
+                return Integer.compare(a.min, b.min);
+            }
+        });
+        return found;
+    }
+
+    /**
+     * 32 bit x86 MurmurHash3 with seed 0, the hash Solr's compositeId router places plain ids with.
+     */
+    static int murmurHash3(byte[] data) {
+        int h = 0;
+        int blocks = data.length & ~3;
+        for (int i = 0; i < blocks; i += 4) {
+            int k = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | data[i + 3] << 24;
+            h ^= mixKey(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+        }
+        int k = 0;
+        switch (data.length & 3) {
+            case 3:
+                k = (data[blocks + 2] & 0xFF) << 16;
+            case 2:
+                k |= (data[blocks + 1] & 0xFF) << 8;
+            case 1:
+                k |= data[blocks] & 0xFF;
+                h ^= mixKey(k);
+            default:
+                break;
+        }
+        h ^= data.length;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixKey(int k) {
+        return Integer.rotateLeft(k * 0xCC9E2D51, 15) * 0x1B873593;
+    }
+
+    /**
+     * Hash range and leader of a SolrCloud shard.
+     */
+    private static final class Shard {
+        private final String name;
+        private int min = Integer.MIN_VALUE;
+        private int max = Integer.MAX_VALUE;
+        private boolean active = true;
+        private String core;
+        private String nodeUrl;
+
+        private Shard(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.threeveed.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.tika.metadata.Metadata;
+
+/**
+ *
+ * HTTP entity that serializes a batch of documents while the request is being sent, so the update body never exists as
+ * a whole in memory. Sent with chunked transfer encoding.
+ *
+ */
+public class UpdateEntity extends AbstractHttpEntity {
+
+    private final List<? extends Metadata> docs;
+    private final UpdateSerializer serializer;
+
+    public UpdateEntity(List<? extends Metadata> docs, UpdateSerializer serializer) {
+        this.docs = docs;
+        this.serializer = serializer;
+        setContentType(serializer.getContentType());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Only used by HttpClient for logging and retries of non-streaming entities; serializes into memory.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeTo(buffer);
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        serializer.write(docs, out);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
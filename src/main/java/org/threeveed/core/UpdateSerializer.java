@@ -0,0 +1,67 @@
+package org.threeveed.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.tika.metadata.Metadata;
+
+/**
+ *
+ * Writes a batch of documents as the body of a Solr update request, straight to the output stream, without building
+ * the body in memory first.
+ *
+ * Characters that are not allowed in Solr documents are dropped while writing.
+ *
+ */
+public abstract class UpdateSerializer {
+
+    public static final String FORMAT_XML = "xml";
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_JAVABIN = "javabin";
+
+    /**
+     * @param format one of xml, json or javabin.
+     * @return serializer for the format.
+     */
+    public static UpdateSerializer forFormat(String format) {
+        if (FORMAT_JSON.equalsIgnoreCase(format)) {
+            return new JsonUpdateSerializer();
+        }
+        if (FORMAT_JAVABIN.equalsIgnoreCase(format)) {
+            return new JavaBinUpdateSerializer();
+        }
+        if (format == null || FORMAT_XML.equalsIgnoreCase(format)) {
+            return new XmlUpdateSerializer();
+        }
+        throw new IllegalArgumentException("Unknown update format: " + format);
+    }
+
+    /**
+     * @return the Content-Type of the update request.
+     */
+    public abstract String getContentType();
+
+    /**
+     * Write the documents as one update request body. The stream is flushed but not closed.
+     *
+     * @param docs documents to add, each one carrying its id in the "id" field.
+     * @param out request body.
+     * @throws IOException if the stream cannot be written.
+     */
+    public abstract void write(List<? extends Metadata> docs, OutputStream out) throws IOException;
+
+    /**
+     * Control characters other than tab, line feed and carriage return are not valid in XML 1.0 and are dropped from
+     * field values in every format.
+     *
+     * @param c character of a field value.
+     * @return true if the character is written out.
+     */
+    protected static boolean isAllowed(char c) {
+        if (c < 0x20) {
+            return c == '\t' || c == '\n' || c == '\r';
+        }
+        return c != 0x7F && c != 0xFFFE && c != 0xFFFF;
+    }
+}
@@ -0,0 +1,76 @@
+package org.threeveed.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.tika.metadata.Metadata;
+
+/**
+ *
+ * Solr XML update format: &lt;add&gt;&lt;doc&gt;&lt;field name="..."&gt;...&lt;/field&gt;&lt;/doc&gt;&lt;/add&gt;.
+ *
+ */
+public class XmlUpdateSerializer extends UpdateSerializer {
+
+    @Override
+    public String getContentType() {
+        return "text/xml; charset=UTF-8";
+    }
+
+    @Override
+    public void write(List<? extends Metadata> docs, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16 * 1024);
+        writer.write("<add>");
+        for (Metadata doc : docs) {
+            writer.write("<doc>");
+            for (String name : doc.names()) {
+                String value = doc.get(name);
+                if (value == null) {
+                    continue;
+                }
+                writer.write("<field name=\"");
+                writeEscaped(writer, name);
+                writer.write("\">");
+                writeEscaped(writer, value);
+                writer.write("</field>");
+            }
+            writer.write("</doc>");
+        }
+        writer.write("</add>");
+        writer.flush();
+    }
+
+    /**
+     * Escape markup and drop invalid characters in one pass, writing unchanged runs of the value as they are.
+     */
+    private static void writeEscaped(Writer writer, String value) throws IOException {
+        int length = value.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c == '<') {
+                replacement = "&lt;";
+            } else if (c == '>') {
+                replacement = "&gt;";
+            } else if (c == '&') {
+                replacement = "&amp;";
+            } else if (c == '"') {
+                replacement = "&quot;";
+            } else if (!isAllowed(c)) {
+                replacement = "";
+            } else {
+                continue;
+            }
+            writer.write(value, runStart, i - runStart);
+            writer.write(replacement);
+            runStart = i + 1;
+        }
+        writer.write(value, runStart, length - runStart);
+    }
+}
@@ -1,11 +1,24 @@
 package org.threeveed.main;
 
+import org.threeveed.bolts.ContainerSplitBolt;
+import org.threeveed.bolts.DeduplicationBolt;
+import org.threeveed.bolts.SolrIndexBolt;
+import org.threeveed.bolts.TextExtractionBolt;
 import org.threeveed.bolts.ThreeVEedEmlBolt;
+import org.threeveed.core.SolrIndex;
+import org.threeveed.metrics.FileMetricsConsumer;
+import org.threeveed.metrics.JmxMetricsConsumer;
 import org.threeveed.spouts.DirectoryReaderSpout;
 
+import java.util.Map;
+
 import org.apache.storm.Config;
+import org.apache.storm.generated.StormTopology;
+import org.apache.storm.topology.IRichSpout;
 import org.apache.storm.topology.TopologyBuilder;
+import org.apache.storm.tuple.Fields;
 import org.apache.storm.LocalCluster;
+import org.apache.storm.utils.Utils;
 
 public class StormStart {
     
@@ -27,22 +40,113 @@ public class StormStart {
         String caseId = args[3];
         String custodian = args[4];
         
+        Config config = createConfig(inputDir, solrUrl, caseId, custodian);
+        
+        // the case is set up once for the whole topology, not by every spout task or index writer
+        boolean fresh = SolrIndex.MODE_FRESH.equals(config.get("caseMode"));
+        DirectoryReaderSpout.initCase(config, fresh);
+        SolrIndexBolt.initCase(config, fresh);
+
+        LocalCluster cluster = new LocalCluster();
+        cluster.submitTopology("FreeEedStorm", config,
+                createTopology(config, numberOfBolts, new DirectoryReaderSpout()));
+    }
+    
+    /**
+     * @return the topology configuration, with the tuning options given as system properties applied.
+     */
+    public static Config createConfig(String inputDir, String solrUrl, String caseId, String custodian) {
         Config config = new Config();
         config.put("inputFile", inputDir);
         config.put("solrUrl", solrUrl);
         config.put("caseId", caseId);
         config.put("custodian", custodian);
-        config.setDebug(true);
+        // logging every tuple costs more than the processing, turn it on with -Dthreeveed.topology.debug=true
+        config.setDebug(false);
+        
+        // batches are only flushed when full or lingering, so allow enough tuples in flight to fill them
+        config.put(Config.TOPOLOGY_MAX_SPOUT_PENDING, 1000);
+        // documents and decoded attachments travel between the stages as serializable objects
+        config.setFallBackOnJavaSerialization(true);
+        putTuningProperties(config);
+        
+        // -Dthreeveed.caseMode=resume continues an interrupted run of the case, fresh (the default) starts it over
+        boolean resume = Utils.getBoolean(config.get("resumeFromCheckpoint"), false);
+        String caseMode = Utils.getString(config.get("caseMode"), resume ? SolrIndex.MODE_RESUME : SolrIndex.MODE_FRESH);
+        if (!SolrIndex.MODE_FRESH.equals(caseMode) && !SolrIndex.MODE_RESUME.equals(caseMode)) {
+            throw new IllegalArgumentException("Unknown caseMode " + caseMode);
+        }
+        config.put("caseMode", caseMode);
+        config.put("resumeFromCheckpoint", SolrIndex.MODE_RESUME.equals(caseMode));
         
-        config.put(Config.TOPOLOGY_MAX_SPOUT_PENDING, 1);
+        // per-stage latencies and counters, e.g. -Dthreeveed.metricsFile=/tmp/3veed-metrics.tsv
+        Object metricsFile = config.get("metricsFile");
+        if (metricsFile != null) {
+            config.registerMetricsConsumer(FileMetricsConsumer.class, metricsFile.toString(), 1);
+        }
+        if (Utils.getBoolean(config.get("metricsJmx"), false)) {
+            config.registerMetricsConsumer(JmxMetricsConsumer.class, 1);
+        }
+        return config;
+    }
+    
+    /**
+     * Wire the processing stages behind the given spout.
+     *
+     * @param config configuration the per-stage parallelism is read from.
+     * @param numberOfBolts default parallelism of every bolt.
+     * @param spout source of the file names to process.
+     */
+    public static StormTopology createTopology(Config config, int numberOfBolts, IRichSpout spout) {
+        // CPU-bound extraction and I/O-bound indexing can be scaled separately, all bolts default to <number of bolts>
+        int spouts = Utils.getInt(config.get("spouts"), 1);
+        int splitBolts = Utils.getInt(config.get("splitBolts"), numberOfBolts);
+        int parseBolts = Utils.getInt(config.get("parseBolts"), numberOfBolts);
+        int dedupBolts = Utils.getInt(config.get("dedupBolts"), numberOfBolts);
+        int extractBolts = Utils.getInt(config.get("extractBolts"), numberOfBolts);
+        int indexBolts = Utils.getInt(config.get("indexBolts"), numberOfBolts);
         
         TopologyBuilder builder = new TopologyBuilder();
-        builder.setSpout("directory-reader-spout", new DirectoryReaderSpout());
-        builder.setBolt("eml-bolt", new ThreeVEedEmlBolt(), numberOfBolts).shuffleGrouping(
+        builder.setSpout("directory-reader-spout", spout, spouts);
+        builder.setBolt("split-bolt", new ContainerSplitBolt(), splitBolts).shuffleGrouping(
                 "directory-reader-spout");
-
-        LocalCluster cluster = new LocalCluster();
-        cluster.submitTopology("FreeEedStorm", config, builder.createTopology());
+        // the messages of one mailbox are spread over all parsing tasks
+        builder.setBolt("eml-bolt", new ThreeVEedEmlBolt(), parseBolts).shuffleGrouping("split-bolt");
+        // copies of an email share a content hash, the fields grouping brings them to the same dedup task
+        builder.setBolt("dedup-bolt", new DeduplicationBolt(), dedupBolts).fieldsGrouping(
+                "eml-bolt", new Fields("hash"));
+        builder.setBolt("extract-bolt", new TextExtractionBolt(), extractBolts).localOrShuffleGrouping(
+                "dedup-bolt");
+        // documents that failed are indexed too, with their processing exception
+        builder.setBolt("index-bolt", new SolrIndexBolt(), indexBolts)
+                .localOrShuffleGrouping("extract-bolt")
+                .localOrShuffleGrouping("dedup-bolt", DeduplicationBolt.DUPLICATE_STREAM)
+                .localOrShuffleGrouping("eml-bolt", ThreeVEedEmlBolt.DEAD_LETTER_STREAM)
+                .localOrShuffleGrouping("extract-bolt", ThreeVEedEmlBolt.DEAD_LETTER_STREAM);
+        return builder.createTopology();
+    }
+    
+    /**
+     * Copy tuning options given as JVM system properties, e.g. -Dthreeveed.solrBatchDocs=500, into the topology
+     * configuration, overriding the defaults set above. Numeric and boolean values are stored as such, as Storm expects.
+     */
+    private static void putTuningProperties(Config config) {
+        String prefix = "threeveed.";
+        for (Map.Entry<Object, Object> entry : System.getProperties().entrySet()) {
+            String key = entry.getKey().toString();
+            if (key.startsWith(prefix)) {
+                String value = entry.getValue().toString();
+                if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+                    config.put(key.substring(prefix.length()), Boolean.valueOf(value));
+                    continue;
+                }
+                try {
+                    config.put(key.substring(prefix.length()), Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    config.put(key.substring(prefix.length()), value);
+                }
+            }
+        }
     }
     
     private static void printUsageAndExit() {
@@ -0,0 +1,46 @@
+package org.threeveed.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ * Counters by key, like Storm's MultiCountMetric, but safe to increment from threads other than the executor, such
+ * as the background Solr sender.
+ */
+public class ConcurrentCountMetric implements IMetric {
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    public void incr(String key) {
+        incrBy(key, 1);
+    }
+
+    public void incrBy(String key, long increment) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong added = new AtomicLong();
+            counter = counters.putIfAbsent(key, added);
+            if (counter == null) {
+                counter = added;
+            }
+        }
+        counter.addAndGet(increment);
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        Map<String, Long> value = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            long count = entry.getValue().getAndSet(0);
+            if (count != 0) {
+                value.put(entry.getKey(), count);
+            }
+        }
+        return value.isEmpty() ? null : value;
+    }
+}
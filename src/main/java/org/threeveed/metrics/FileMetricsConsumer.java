@@ -0,0 +1,83 @@
+package org.threeveed.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.storm.metric.api.IMetricsConsumer;
+import org.apache.storm.task.IErrorReporter;
+import org.apache.storm.task.TopologyContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends every metric reported by the topology to a local file, one tab separated line per value:
+ * timestamp, component:task, metric name and value. Map valued metrics, such as counters by key or histograms, are
+ * written as one line per entry named metric.key.
+ *
+ * The registration argument is the file path.
+ */
+public class FileMetricsConsumer implements IMetricsConsumer {
+    private static final Logger logger = LoggerFactory.getLogger(FileMetricsConsumer.class);
+
+    private Writer writer;
+    private File file;
+
+    @Override
+    public void prepare(Map stormConf, Object registrationArgument, TopologyContext context,
+            IErrorReporter errorReporter) {
+        file = new File(registrationArgument.toString());
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                    StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open metrics file " + file, e);
+        }
+    }
+
+    @Override
+    public void handleDataPoints(TaskInfo taskInfo, Collection<DataPoint> dataPoints) {
+        String source = taskInfo.timestamp + "\t" + taskInfo.srcComponentId + ":" + taskInfo.srcTaskId + "\t";
+        try {
+            for (DataPoint point : dataPoints) {
+                if (point.value instanceof Map) {
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) point.value).entrySet()) {
+                        writeLine(source, point.name + "." + entry.getKey(), entry.getValue());
+                    }
+                } else {
+                    writeLine(source, point.name, point.value);
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            logger.error("Cannot write metrics file " + file, e);
+        }
+    }
+
+    private void writeLine(String source, String name, Object value) throws IOException {
+        writer.write(source);
+        writer.write(name);
+        writer.write('\t');
+        writer.write(String.valueOf(value));
+        writer.write('\n');
+    }
+
+    @Override
+    public void cleanup() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn("Problem closing metrics file " + file, e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.threeveed.metrics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ * Distribution of a value over one metrics interval, typically a latency in microseconds or a batch size. Values are
+ * counted in log-linear buckets, 16 per power of two, so recording allocates nothing and percentiles are within about
+ * 6% of the exact value whatever the range.
+ *
+ * Reports count, min, mean, p50, p90, p99 and max, then starts over. Safe to record from several threads.
+ */
+public class HistogramMetric implements IMetric {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * @param value non-negative value, negative values are recorded as 0.
+     */
+    public synchronized void record(long value) {
+        value = Math.max(0, value);
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Record the time elapsed since a {@link System#nanoTime()} reading, in microseconds.
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    @Override
+    public synchronized Object getValueAndReset() {
+        if (count == 0) {
+            return null;
+        }
+
+        Map<String, Object> value = new HashMap<>();
+        value.put("count", count);
+        value.put("min", min);
+        value.put("mean", sum / count);
+        value.put("p50", percentile(50));
+        value.put("p90", percentile(90));
+        value.put("p99", percentile(99));
+        value.put("max", max);
+
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        return value;
+    }
+
+    private long percentile(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, Math.max(min, highestValue(i)));
+            }
+        }
+        return max;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + subBucket * width + width - 1;
+    }
+}
@@ -0,0 +1,147 @@
+package org.threeveed.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.storm.metric.api.IMetricsConsumer;
+import org.apache.storm.task.IErrorReporter;
+import org.apache.storm.task.TopologyContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the latest value of every metric of the topology as read-only JMX attributes, one MBean per task named
+ * org.threeveed:type=Metrics,component=...,task=..., so they can be watched with jconsole or scraped by a JMX agent.
+ * Map valued metrics become one attribute per entry named metric.key.
+ */
+public class JmxMetricsConsumer implements IMetricsConsumer {
+    private static final Logger logger = LoggerFactory.getLogger(JmxMetricsConsumer.class);
+
+    private final Map<String, TaskMetrics> tasks = new ConcurrentHashMap<>();
+    private MBeanServer server;
+
+    @Override
+    public void prepare(Map stormConf, Object registrationArgument, TopologyContext context,
+            IErrorReporter errorReporter) {
+        server = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    @Override
+    public void handleDataPoints(TaskInfo taskInfo, Collection<DataPoint> dataPoints) {
+        String key = taskInfo.srcComponentId + ":" + taskInfo.srcTaskId;
+        TaskMetrics metrics = tasks.get(key);
+        if (metrics == null) {
+            metrics = register(taskInfo);
+            tasks.put(key, metrics);
+        }
+
+        for (DataPoint point : dataPoints) {
+            if (point.value instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) point.value).entrySet()) {
+                    metrics.values.put(point.name + "." + entry.getKey(), entry.getValue());
+                }
+            } else if (point.value != null) {
+                metrics.values.put(point.name, point.value);
+            }
+        }
+    }
+
+    private TaskMetrics register(TaskInfo taskInfo) {
+        TaskMetrics metrics = new TaskMetrics();
+        try {
+            metrics.name = new ObjectName("org.threeveed:type=Metrics,component="
+                    + ObjectName.quote(taskInfo.srcComponentId) + ",task=" + taskInfo.srcTaskId);
+            if (!server.isRegistered(metrics.name)) {
+                server.registerMBean(metrics, metrics.name);
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot register metrics of " + taskInfo.srcComponentId + ":" + taskInfo.srcTaskId, e);
+            metrics.name = null;
+        }
+        return metrics;
+    }
+
+    @Override
+    public void cleanup() {
+        for (TaskMetrics metrics : tasks.values()) {
+            if (metrics.name == null) {
+                continue;
+            }
+            try {
+                server.unregisterMBean(metrics.name);
+            } catch (Exception e) {
+                logger.warn("Cannot unregister " + metrics.name, e);
+            }
+        }
+        tasks.clear();
+    }
+
+    /**
+     * Latest values reported by one task.
+     */
+    private static final class TaskMetrics implements DynamicMBean {
+        private final ConcurrentMap<String, Object> values = new ConcurrentHashMap<>();
+        private ObjectName name;
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = values.get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Object value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(TaskMetrics.class.getName(), "Storm metrics of one task",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+}
@@ -1,9 +1,32 @@
 package org.threeveed.spouts;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.FilenameUtils;
+import org.threeveed.bolts.SolrIndexBolt;
+import org.threeveed.core.SolrIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.topology.IRichSpout;
@@ -11,70 +34,371 @@ import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.tuple.Values;
 import org.apache.storm.tuple.Fields;
+import org.apache.storm.utils.Utils;
 
+/**
+ * Walks the input directory lazily, one directory listing at a time, and emits every .eml file as a reliable tuple
+ * whose message id is the file path. Failed or timed out files are replayed up to a retry limit, so the number of files
+ * in flight is governed by acks and topology.max.spout.pending.
+ *
+ * An .mbox mailbox is emitted as byte ranges of mboxChunkMb (8 by default), each a tuple of its own, with its own
+ * replays and checkpoint entry; {@link org.threeveed.bolts.ContainerSplitBolt} finds the messages in each range. So
+ * however large a mailbox is, only a range of it has to complete within topology.message.timeout.secs, a failure only
+ * replays that range, and max spout pending bounds the ranges in flight. The mailbox itself is recorded as done once
+ * all its ranges are.
+ *
+ * Processed files are recorded in a {@link ScanCheckpoint}; with resumeFromCheckpoint=true a restarted topology only
+ * emits new or modified files. Resuming also skips emails the index already holds in full, which covers files
+ * processed after the last checkpoint flush or recorded on another machine.
+ *
+ * The spout can run with any parallelism: each task walks the tree but only claims the files of its
+ * {@link PathPartition}, so every file is emitted by exactly one task.
+ * In watch mode (watchInput=true) the spout keeps running after the first walk: a WatchService reports files as they
+ * land, and the whole tree is walked again every watchReconcileSecs to catch anything the watcher missed.
+ */
 public class DirectoryReaderSpout implements IRichSpout {
     private static final long serialVersionUID = 1L;
-    
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryReaderSpout.class);
+    private static final int DEFAULT_EMIT_PER_CALL = 100;
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final int DEFAULT_RECONCILE_SECS = 300;
+    private static final int DEFAULT_SETTLE_MS = 2000;
+    private static final int DEFAULT_MBOX_CHUNK_MB = 8;
+
     private SpoutOutputCollector collector;
     private boolean completed = false;
     private TopologyContext context;
 
     private String inputDir;
+    private int emitPerCall;
+    private int maxRetries;
+    private long mboxChunkBytes;
+    private Deque<File> directories;
+    private Set<String> files;
+    private Deque<String> retries;
+    private Map<String, Integer> inFlight;
+    private Map<String, Long> inFlightVersions;
+    private Map<String, Integer> pendingChunks;
+    private ScanCheckpoint checkpoint;
+    private Set<String> indexedPaths;
+    private PathPartition partition;
+
+    private boolean watch;
+    private WatchService watchService;
+    private Map<WatchKey, Path> watchedDirectories;
+    private Set<Path> watchedPaths;
+    private Map<String, Long> settling;
+    private long reconcileIntervalMs;
+    private long settleMs;
+    private long lastWalkStart;
 
     @Override
     public void open(Map conf, TopologyContext context,
             SpoutOutputCollector collector) {
-        
+
         this.context = context;
         this.inputDir = conf.get("inputFile").toString();
         this.collector = collector;
+        this.emitPerCall = Utils.getInt(conf.get("spoutEmitPerCall"), DEFAULT_EMIT_PER_CALL);
+        this.maxRetries = Utils.getInt(conf.get("spoutMaxRetries"), DEFAULT_MAX_RETRIES);
+        this.mboxChunkBytes = Math.max(1, Utils.getInt(conf.get("mboxChunkMb"), DEFAULT_MBOX_CHUNK_MB)) * 1024L * 1024;
+        this.watch = Utils.getBoolean(conf.get("watchInput"), false);
+        this.reconcileIntervalMs = Utils.getInt(conf.get("watchReconcileSecs"), DEFAULT_RECONCILE_SECS) * 1000L;
+        this.settleMs = Utils.getInt(conf.get("watchSettleMs"), DEFAULT_SETTLE_MS);
+
+        directories = new ArrayDeque<>();
+        files = new LinkedHashSet<>();
+        retries = new ArrayDeque<>();
+        inFlight = new HashMap<>();
+        inFlightVersions = new HashMap<>();
+        pendingChunks = new HashMap<>();
+        settling = new LinkedHashMap<>();
+        watchedDirectories = new HashMap<>();
+        watchedPaths = new HashSet<>();
+
+        partition = new PathPartition(context.getThisTaskIndex(),
+                context.getComponentTasks(context.getThisComponentId()).size());
+
+        checkpoint = new ScanCheckpoint(getCheckpointDir(conf), conf.get("caseId").toString(), partition);
+        boolean resume = Utils.getBoolean(conf.get("resumeFromCheckpoint"), false);
+        indexedPaths = Collections.emptySet();
+        if (resume && conf.get("solrUrl") != null) {
+            // only the emails of this task's partition are kept, the index may hold far more
+            indexedPaths = SolrIndexBolt.getIndexedPaths(conf, conf.get("custodian").toString(),
+                    new SolrIndex.PathFilter() {
+                        @Override
+                        public boolean accept(String path) {
+                            return partition.owns(new File(inputDir + path).getAbsolutePath());
+                        }
+                    });
+            logger.info("Index of case {} holds {} emails of the custodian in partition {}", conf.get("caseId"),
+                    indexedPaths.size(), partition);
+        }
+        try {
+            checkpoint.open(resume);
+            if (watch) {
+                watchService = FileSystems.getDefault().newWatchService();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open the input checkpoint", e);
+        }
+
+        startWalk();
+    }
+
+    /**
+     * Set up the input side of the case, once per topology: a fresh run forgets the checkpoints of every spout task
+     * of the case.
+     *
+     * @param fresh true to start the case over, false to resume it.
+     */
+    public static void initCase(Map conf, boolean fresh) {
+        if (fresh) {
+            ScanCheckpoint.deleteAll(getCheckpointDir(conf), conf.get("caseId").toString());
+        }
+    }
+
+    /**
+     * @return checkpointDir, by default ~/.3veed.
+     */
+    private static File getCheckpointDir(Map conf) {
+        return new File(Utils.getString(conf.get("checkpointDir"),
+                System.getProperty("user.home") + File.separator + ".3veed"));
     }
 
     @Override
     public void nextTuple() {
-        if (completed) {
-            return;
+        if (watch) {
+            pollWatcher();
+            if (directories.isEmpty() && files.isEmpty()
+                    && System.currentTimeMillis() - lastWalkStart >= reconcileIntervalMs) {
+                startWalk();
+            }
         }
-        
+
+        for (int i = 0; i < emitPerCall; i++) {
+            String fileName = retries.poll();
+            if (fileName == null) {
+                fileName = nextFile();
+            }
+            if (fileName == null) {
+                break;
+            }
+
+            Integer attempts = inFlight.get(fileName);
+            inFlight.put(fileName, attempts == null ? 1 : attempts + 1);
+            String path = ScanCheckpoint.pathOf(fileName);
+            if (attempts == null) {
+                inFlightVersions.put(fileName, new File(path).lastModified());
+            }
+            int chunk = ScanCheckpoint.chunkOf(fileName);
+            if (chunk < 0) {
+                collector.emit(new Values(path, 0L, -1L), fileName);
+            } else {
+                collector.emit(new Values(path, chunk * mboxChunkBytes, mboxChunkBytes), fileName);
+            }
+        }
+
+        checkpoint.flush(false);
+
+        if (!watch && !completed && directories.isEmpty() && files.isEmpty() && retries.isEmpty()
+                && inFlight.isEmpty()) {
+            completed = true;
+            checkpoint.flush(true);
+            logger.info("All files of partition {} under {} processed", partition, inputDir);
+        }
+    }
+
+    private void startWalk() {
+        lastWalkStart = System.currentTimeMillis();
+        File root = new File(inputDir);
+        if (root.isDirectory()) {
+            directories.push(root);
+        } else {
+            offerFile(root);
+        }
+    }
+
+    /**
+     * @return the next file, or chunk key, of the walk, listing directories only when the files found so far are used
+     * up.
+     */
+    private String nextFile() {
         try {
-            File f = new File(inputDir);
-            emitFile(f);
+            while (files.isEmpty() && !directories.isEmpty()) {
+                listDirectory(directories.pop());
+            }
         } catch (Exception e) {
             throw new RuntimeException("Error reading tuple", e);
-        } finally {
-            completed = true;
         }
 
+        Iterator<String> it = files.iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        String fileName = it.next();
+        it.remove();
+        return fileName;
+    }
+
+    private void listDirectory(File dir) {
+        watchDirectory(dir);
+
+        String[] filesInDir = dir.list();
+        if (filesInDir == null) {
+            logger.warn("Cannot list directory {}", dir);
+            return;
+        }
+
+        Arrays.sort(filesInDir);
+        List<File> emails = new ArrayList<>();
+        for (int i = filesInDir.length - 1; i >= 0; i--) {
+            File newFile = new File(dir, filesInDir[i]);
+            // every task walks every directory, even one named like a mailbox (an exported Inbox.mbox folder):
+            // the partition only decides which of the files in it a task emits
+            if (newFile.isDirectory()) {
+                directories.push(newFile);
+            } else if (isEmail(newFile.getPath())) {
+                emails.add(newFile);
+            }
+        }
+        for (int i = emails.size() - 1; i >= 0; i--) {
+            offerFile(emails.get(i));
+        }
     }
 
-    private void emitFile(File file) {
-        if (file.isDirectory()) {
-            String[] filesInDir = file.list();
-            for (String fileInDir : filesInDir) {
-                String name = file.getAbsolutePath() + File.separator + fileInDir;
-                File newFile = new File(name);
-                emitFile(newFile);
+    /**
+     * Queue the file unless it is not an email, belongs to another task, is already in flight, this version of it
+     * was processed before, or it is already indexed.
+     */
+    private void offerFile(File file) {
+        String fileName = file.getAbsolutePath();
+        if (isEmail(fileName) && partition.owns(fileName) && !inFlight.containsKey(fileName)
+                && !checkpoint.isDone(fileName, file.lastModified())) {
+            if (isMbox(fileName)) {
+                offerChunks(file);
+                return;
+            }
+            // indexed under the same path the parsing bolt gives it
+            if (indexedPaths.contains(fileName.replace(inputDir, ""))) {
+                checkpoint.markDone(fileName, file.lastModified());
+                return;
             }
+            files.add(fileName);
+        }
+    }
+
+    /**
+     * Queue the chunks of a mailbox that are neither done nor in flight.
+     */
+    private void offerChunks(File file) {
+        String fileName = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long chunks = Math.max(1, (file.length() + mboxChunkBytes - 1) / mboxChunkBytes);
+        int pending = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            String key = ScanCheckpoint.chunkKey(fileName, chunk);
+            if (checkpoint.isDone(key, lastModified)) {
+                continue;
+            }
+            pending++;
+            if (!inFlight.containsKey(key)) {
+                files.add(key);
+            }
+        }
+        if (pending == 0) {
+            checkpoint.markDone(fileName, lastModified);
         } else {
-            String fileName = file.getAbsolutePath();
-            String ext = FilenameUtils.getExtension(fileName);
-            if ("eml".equalsIgnoreCase(ext)) {
-                this.collector.emit(new Values(fileName));
+            pendingChunks.put(fileName, pending);
+        }
+    }
+
+    /**
+     * @return true for single emails and for mbox mailboxes, which are split into emails downstream.
+     */
+    private static boolean isEmail(String fileName) {
+        return "eml".equalsIgnoreCase(FilenameUtils.getExtension(fileName)) || isMbox(fileName);
+    }
+
+    private static boolean isMbox(String fileName) {
+        return "mbox".equalsIgnoreCase(FilenameUtils.getExtension(fileName));
+    }
+
+    private void watchDirectory(File dir) {
+        Path path = dir.toPath();
+        if (watchService == null || watchedPaths.contains(path)) {
+            return;
+        }
+        try {
+            WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, path);
+            watchedPaths.add(path);
+        } catch (IOException e) {
+            logger.warn("Cannot watch directory " + dir, e);
+        }
+    }
+
+    /**
+     * Collect files reported by the watcher. A file is only queued once it stopped changing for watchSettleMs, so
+     * emails still being written are not picked up half way. New directories are walked; a lost event triggers a
+     * full walk.
+     */
+    private void pollWatcher() {
+        WatchKey key;
+        while ((key = watchService.poll()) != null) {
+            Path dir = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    lastWalkStart = 0;
+                    continue;
+                }
+                if (dir == null) {
+                    continue;
+                }
+                File file = dir.resolve((Path) event.context()).toFile();
+                if (file.isDirectory()) {
+                    directories.push(file);
+                } else {
+                    settling.put(file.getAbsolutePath(), System.currentTimeMillis());
+                }
+            }
+            if (!key.reset()) {
+                watchedPaths.remove(watchedDirectories.remove(key));
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> it = settling.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            File file = new File(entry.getKey());
+            if (now - Math.max(entry.getValue(), file.lastModified()) >= settleMs) {
+                offerFile(file);
+                it.remove();
             }
         }
     }
-    
+
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-        declarer.declare(new Fields("file"));
+        declarer.declare(new Fields("file", "offset", "length"));
     }
 
     @Override
     public void close() {
+        checkpoint.close();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("Problem closing the directory watcher", e);
+            }
+        }
     }
 
     public boolean isDistributed() {
-        return false;
+        return true;
     }
 
     @Override
@@ -87,10 +411,53 @@ public class DirectoryReaderSpout implements IRichSpout {
 
     @Override
     public void ack(Object msgId) {
+        String fileName = (String) msgId;
+        inFlight.remove(fileName);
+        Long version = inFlightVersions.remove(fileName);
+        if (version == null) {
+            return;
+        }
+        checkpoint.markDone(fileName, version);
+        if (ScanCheckpoint.chunkOf(fileName) >= 0) {
+            String path = ScanCheckpoint.pathOf(fileName);
+            Integer pending = pendingChunks.remove(path);
+            if (pending != null && pending > 1) {
+                pendingChunks.put(path, pending - 1);
+            } else if (pending != null) {
+                checkpoint.markDone(path, version);
+            }
+        }
     }
 
     @Override
     public void fail(Object msgId) {
+        String fileName = (String) msgId;
+        Integer attempts = inFlight.get(fileName);
+        if (attempts == null) {
+            return;
+        }
+
+        if (attempts <= maxRetries) {
+            logger.warn("Replaying {} (attempt {})", describe(fileName), attempts + 1);
+            retries.add(fileName);
+        } else {
+            logger.error("Giving up on {} after {} attempts", describe(fileName), attempts);
+            inFlight.remove(fileName);
+            inFlightVersions.remove(fileName);
+            // the mailbox stays undone, a resume emits the chunks it still misses
+            pendingChunks.remove(ScanCheckpoint.pathOf(fileName));
+        }
+    }
+
+    /**
+     * @return the path of a file, or the path and range of a chunk, for the log.
+     */
+    private String describe(String key) {
+        int chunk = ScanCheckpoint.chunkOf(key);
+        if (chunk < 0) {
+            return key;
+        }
+        return ScanCheckpoint.pathOf(key) + " from byte " + chunk * mboxChunkBytes;
     }
 
     @Override
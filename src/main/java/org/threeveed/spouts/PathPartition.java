@@ -0,0 +1,41 @@
+package org.threeveed.spouts;
+
+/**
+ * Deterministic share of the input files claimed by one spout task: a file belongs to the task whose index equals the
+ * hash of its absolute path modulo the number of tasks, so every file is emitted by exactly one task.
+ */
+public class PathPartition {
+
+    private final int index;
+    private final int count;
+
+    /**
+     * @param index index of this task among the spout tasks, from 0.
+     * @param count number of spout tasks.
+     */
+    public PathPartition(int index, int count) {
+        this.index = index;
+        this.count = Math.max(1, count);
+    }
+
+    /**
+     * @param path absolute path of a file.
+     * @return true if this task is responsible for the file.
+     */
+    public boolean owns(String path) {
+        return count == 1 || (path.hashCode() & Integer.MAX_VALUE) % count == index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return (index + 1) + "/" + count;
+    }
+}
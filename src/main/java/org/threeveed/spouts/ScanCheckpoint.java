@@ -0,0 +1,237 @@
+package org.threeveed.spouts;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which files were fully processed, and in which version (last modified time), so a restarted spout skips
+ * them. Stored as an append-only text file of "lastModified TAB path" lines, compacted every time it is opened. The
+ * chunks of a mailbox are recorded one by one, under a key made of the mailbox path and the chunk number, see
+ * {@link #chunkKey(String, int)}, so a restarted spout only emits the chunks that were not done.
+ *
+ * Every spout task writes its own file, caseId-taskIndex.checkpoint, and reads the files of all tasks of the case when
+ * resuming, so a topology can be restarted with a different spout parallelism. A fresh run must therefore remove the
+ * files of every task of the case first, see {@link #deleteAll(File, String)}.
+ */
+public class ScanCheckpoint {
+    private static final Logger logger = LoggerFactory.getLogger(ScanCheckpoint.class);
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final String SUFFIX = ".checkpoint";
+    /** Separates the path and the chunk number in the key of a chunk, it cannot be part of a path. */
+    private static final char CHUNK_SEPARATOR = '\u0000';
+
+    private final File dir;
+    private final String caseId;
+    private final PathPartition partition;
+    private final File file;
+    private final Map<String, Long> done = new HashMap<>();
+    private Writer writer;
+    private long lastFlush = 0;
+    private boolean dirty = false;
+
+    /**
+     * @param dir directory holding the checkpoint files.
+     * @param caseId case the files belong to.
+     * @param partition files this task is responsible for.
+     */
+    public ScanCheckpoint(File dir, String caseId, PathPartition partition) {
+        this.dir = dir;
+        this.caseId = caseId;
+        this.partition = partition;
+        this.file = new File(dir, caseId + "-" + partition.getIndex() + SUFFIX);
+    }
+
+    /**
+     * Load the entries of this task's partition from the checkpoints of the case and rewrite this task's checkpoint
+     * with just those entries.
+     *
+     * @param resume false to forget everything recorded so far and start a fresh scan.
+     * @throws IOException if the checkpoint cannot be read or rewritten.
+     */
+    public void open(boolean resume) throws IOException {
+        dir.mkdirs();
+        if (resume) {
+            File[] checkpoints = dir.listFiles();
+            if (checkpoints != null) {
+                for (File checkpoint : checkpoints) {
+                    if (isCaseCheckpoint(checkpoint.getName(), caseId)) {
+                        load(checkpoint);
+                    }
+                }
+            }
+            logger.info("Checkpoints of case {} list {} processed files for partition {}",
+                    caseId, done.size(), partition);
+        }
+
+        File compacted = new File(file.getPath() + ".tmp");
+        try (Writer out = open(compacted, false)) {
+            for (Map.Entry<String, Long> entry : done.entrySet()) {
+                writeEntry(out, entry.getKey(), entry.getValue());
+            }
+        }
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            throw new IOException("Cannot replace checkpoint " + file);
+        }
+
+        writer = open(file, true);
+    }
+
+    /**
+     * Delete the checkpoints of all tasks of the case, for a fresh run. Left in place, the files of tasks an earlier
+     * run had and this one does not would be read by the next resume, and their files skipped although the fresh
+     * run emptied the index. Must be called before any spout task opens its checkpoint.
+     *
+     * @param dir directory holding the checkpoint files.
+     * @param caseId case whose checkpoints to delete.
+     */
+    public static void deleteAll(File dir, String caseId) {
+        File[] checkpoints = dir.listFiles();
+        if (checkpoints == null) {
+            return;
+        }
+        for (File checkpoint : checkpoints) {
+            if (isCaseCheckpoint(checkpoint.getName(), caseId) && !checkpoint.delete()) {
+                logger.warn("Cannot delete checkpoint {}", checkpoint);
+            }
+        }
+    }
+
+    private static boolean isCaseCheckpoint(String name, String caseId) {
+        if (!name.startsWith(caseId + "-") || !name.endsWith(SUFFIX)) {
+            return false;
+        }
+        String index = name.substring(caseId.length() + 1, name.length() - SUFFIX.length());
+        return index.length() > 0 && index.matches("[0-9]+");
+    }
+
+    private void load(File checkpoint) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(checkpoint), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                String path = line.substring(tab + 1);
+                if (!partition.owns(pathOf(path))) {
+                    continue;
+                }
+                try {
+                    done.put(path, Long.parseLong(line.substring(0, tab)));
+                } catch (NumberFormatException e) {
+                    // line cut short by a crash while appending
+                }
+            }
+        }
+    }
+
+    /**
+     * @param path absolute path of a container file.
+     * @param chunk number of the chunk, from 0.
+     * @return the key a chunk of the file is recorded under.
+     */
+    public static String chunkKey(String path, int chunk) {
+        return path + CHUNK_SEPARATOR + chunk;
+    }
+
+    /**
+     * @param key path of a file or key of a chunk.
+     * @return the path of the file.
+     */
+    public static String pathOf(String key) {
+        int separator = key.indexOf(CHUNK_SEPARATOR);
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+
+    /**
+     * @param key path of a file or key of a chunk.
+     * @return the number of the chunk, or -1 for a whole file.
+     */
+    public static int chunkOf(String key) {
+        int separator = key.indexOf(CHUNK_SEPARATOR);
+        return separator < 0 ? -1 : Integer.parseInt(key.substring(separator + 1));
+    }
+
+    /**
+     * @param path absolute file path, or the key of a chunk.
+     * @param lastModified current last modified time of the file.
+     * @return true if this version of the file was already processed.
+     */
+    public boolean isDone(String path, long lastModified) {
+        Long version = done.get(path);
+        return version != null && version == lastModified;
+    }
+
+    /**
+     * Record a processed file. Written out by the next {@link #flush(boolean)}.
+     *
+     * @param path absolute file path, or the key of a chunk.
+     * @param lastModified last modified time of the version that was processed.
+     */
+    public void markDone(String path, long lastModified) {
+        if (path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+            return;
+        }
+        done.put(path, lastModified);
+        try {
+            writeEntry(writer, path, lastModified);
+            dirty = true;
+        } catch (IOException e) {
+            logger.error("Cannot write checkpoint " + file, e);
+        }
+    }
+
+    /**
+     * Flush recorded files to disk, at most once a second unless forced.
+     *
+     * @param force flush even if the last flush was recent.
+     */
+    public void flush(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!dirty || (!force && now - lastFlush < FLUSH_INTERVAL_MS)) {
+            return;
+        }
+        try {
+            writer.flush();
+            dirty = false;
+            lastFlush = now;
+        } catch (IOException e) {
+            logger.error("Cannot write checkpoint " + file, e);
+        }
+    }
+
+    public void close() {
+        flush(true);
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn("Problem closing checkpoint " + file, e);
+        }
+    }
+
+    private static Writer open(File file, boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8));
+    }
+
+    private static void writeEntry(Writer out, String path, long lastModified) throws IOException {
+        out.write(Long.toString(lastModified));
+        out.write('\t');
+        out.write(path);
+        out.write('\n');
+    }
+}
@@ -0,0 +1,329 @@
+package org.threeveed.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The spool acks documents before they reach the index, so whatever a crash leaves on disk has to be read back as
+ * exactly the documents that were synced and not yet delivered, in order.
+ */
+public class IndexSpoolTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File(folder.getRoot(), "spool");
+    }
+
+    @Test
+    public void readsAppendedDocumentsInOrder() throws IOException {
+        IndexSpool spool = open();
+        DocumentMetadata doc = document(1);
+        doc.add("multi", "a");
+        doc.add("multi", "");
+        doc.add("multi", "été ☃");
+        assertTrue(spool.append(doc));
+        assertTrue(spool.append(document(2)));
+        spool.sync();
+
+        assertTrue(spool.hasUnread());
+        List<DocumentMetadata> docs = spool.read(10, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("doc-1", "doc-2"), ids(docs));
+        assertArrayEquals(new String[] {"a", "", "été ☃"}, docs.get(0).getValues("multi"));
+        assertEquals("text of 1", docs.get(0).getDocumentText());
+        assertFalse(spool.hasUnread());
+        assertEquals(0, spool.read(10, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void readStopsAtDocumentAndByteLimits() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 5);
+
+        assertEquals(Arrays.asList("doc-0", "doc-1"), ids(spool.read(2, Long.MAX_VALUE)));
+        assertEquals(Arrays.asList("doc-2"), ids(spool.read(10, 1)));
+        assertEquals(Arrays.asList("doc-3", "doc-4"), ids(spool.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void reopenContinuesAfterCommittedRead() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 10);
+        assertEquals(4, spool.read(4, Long.MAX_VALUE).size());
+        spool.commitRead();
+        // read but not delivered: read again after the restart
+        assertEquals(3, spool.read(3, Long.MAX_VALUE).size());
+        spool.close();
+
+        IndexSpool reopened = open();
+        assertEquals(Arrays.asList("doc-4", "doc-5", "doc-6", "doc-7", "doc-8", "doc-9"),
+                ids(reopened.read(100, Long.MAX_VALUE)));
+        append(reopened, 10, 1);
+        assertEquals(Arrays.asList("doc-10"), ids(reopened.read(100, Long.MAX_VALUE)));
+        reopened.commitRead();
+        reopened.close();
+
+        IndexSpool drained = open();
+        assertFalse(drained.hasUnread());
+        assertEquals(0, drained.read(100, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void rollsOverToNewSegmentsAndDeletesDeliveredOnes() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 100);
+        assertTrue(segments().length > 3);
+
+        List<DocumentMetadata> docs = spool.read(1000, Long.MAX_VALUE);
+        assertEquals(100, docs.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("doc-" + i, docs.get(i).getUniqueId());
+        }
+        spool.commitRead();
+        assertEquals(1, segments().length);
+        spool.close();
+
+        IndexSpool reopened = open();
+        assertFalse(reopened.hasUnread());
+        append(reopened, 100, 1);
+        assertEquals(Arrays.asList("doc-100"), ids(reopened.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void oversizedDocumentGetsASegmentOfItsOwn() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 1);
+        DocumentMetadata big = document(1);
+        big.setDocumentText(repeat('x', 3 * SEGMENT_BYTES));
+        assertTrue(spool.append(big));
+        append(spool, 2, 1);
+        spool.sync();
+
+        File[] segments = segments();
+        assertEquals(3, segments.length);
+        assertTrue(segments[1].length() > SEGMENT_BYTES);
+        spool.close();
+
+        IndexSpool reopened = open();
+        List<DocumentMetadata> docs = reopened.read(10, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("doc-0", "doc-1", "doc-2"), ids(docs));
+        assertEquals(3 * SEGMENT_BYTES, docs.get(1).getDocumentText().length());
+    }
+
+    @Test
+    public void refusesDocumentsWhenFullUntilDelivered() throws IOException {
+        IndexSpool spool = new IndexSpool(dir, SEGMENT_BYTES, 2 * SEGMENT_BYTES);
+        int appended = 0;
+        while (spool.append(document(appended))) {
+            appended++;
+            assertTrue("spool never filled up", appended < 1000);
+        }
+        spool.sync();
+        assertTrue(appended > 0);
+        assertTrue(segments().length <= 2);
+
+        assertEquals(appended, spool.read(1000, Long.MAX_VALUE).size());
+        spool.commitRead();
+        assertTrue(spool.append(document(appended)));
+        assertEquals(Arrays.asList("doc-" + appended), ids(spool.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void dropsTornRecordAtTheEnd() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 3);
+        spool.close();
+        // the last record was cut short by the crash: its payload no longer matches its CRC
+        List<Integer> records = records(segments()[0]);
+        overwrite(segments()[0], records.get(2) + 8 + 1, new byte[] {0, 0, 0});
+
+        IndexSpool reopened = open();
+        assertEquals(Arrays.asList("doc-0", "doc-1"), ids(reopened.read(10, Long.MAX_VALUE)));
+        append(reopened, 3, 1);
+        assertEquals(Arrays.asList("doc-3"), ids(reopened.read(10, Long.MAX_VALUE)));
+        reopened.close();
+
+        assertEquals(Arrays.asList("doc-0", "doc-1", "doc-3"), ids(open().read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void dropsRecordWhoseLengthNeverMadeIt() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 3);
+        spool.close();
+        // the length is written last, a crash before it leaves a zero there
+        overwrite(segments()[0], records(segments()[0]).get(2), new byte[] {0, 0, 0, 0});
+
+        IndexSpool reopened = open();
+        assertEquals(Arrays.asList("doc-0", "doc-1"), ids(reopened.read(10, Long.MAX_VALUE)));
+        append(reopened, 3, 1);
+        reopened.close();
+
+        assertEquals(Arrays.asList("doc-0", "doc-1", "doc-3"), ids(open().read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void clearsGarbageBehindTheLastRecord() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 2);
+        spool.close();
+        File segment = segments()[0];
+        int end = end(segment);
+        // bytes of a record whose length made it but whose payload did not
+        overwrite(segment, end, new byte[] {0, 0, 0, 16, 1, 2, 3, 4, 5, 6, 7, 8});
+
+        IndexSpool reopened = open();
+        assertEquals(Arrays.asList("doc-0", "doc-1"), ids(reopened.read(10, Long.MAX_VALUE)));
+        append(reopened, 2, 1);
+        reopened.close();
+
+        assertEquals(Arrays.asList("doc-0", "doc-1", "doc-2"), ids(open().read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void neverBringsBackRecordsBehindALostOne() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 3);
+        spool.close();
+        // pages reach the disk in any order before a sync: a later record may be there while an earlier one is not
+        overwrite(segments()[0], records(segments()[0]).get(1), new byte[] {0, 0, 0, 0});
+
+        IndexSpool reopened = open();
+        assertEquals(Arrays.asList("doc-0"), ids(reopened.read(10, Long.MAX_VALUE)));
+        append(reopened, 3, 1);
+        reopened.close();
+
+        assertEquals(Arrays.asList("doc-0", "doc-3"), ids(open().read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void continuesInNextSegmentAfterCrashBetweenSegments() throws IOException {
+        IndexSpool spool = open();
+        append(spool, 0, 2);
+        spool.close();
+        // the segment was ended but the next one never created
+        File segment = segments()[0];
+        overwrite(segment, end(segment), new byte[] {-1, -1, -1, -1});
+
+        IndexSpool reopened = open();
+        append(reopened, 2, 1);
+        assertEquals(2, segments().length);
+        assertEquals(Arrays.asList("doc-0", "doc-1", "doc-2"), ids(reopened.read(10, Long.MAX_VALUE)));
+        reopened.close();
+
+        IndexSpool again = open();
+        assertEquals(Arrays.asList("doc-0", "doc-1", "doc-2"), ids(again.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void newSpoolHasNothingToRead() throws IOException {
+        IndexSpool spool = open();
+        assertFalse(spool.hasUnread());
+        assertEquals(0, spool.read(10, Long.MAX_VALUE).size());
+        assertFalse(new File(dir, "read.offset").exists());
+    }
+
+    private IndexSpool open() throws IOException {
+        return new IndexSpool(dir, SEGMENT_BYTES, MAX_BYTES);
+    }
+
+    private static DocumentMetadata document(int i) {
+        DocumentMetadata doc = new DocumentMetadata();
+        doc.setUniqueId("doc-" + i);
+        doc.setDocumentText("text of " + i);
+        return doc;
+    }
+
+    private static void append(IndexSpool spool, int first, int count) throws IOException {
+        for (int i = first; i < first + count; i++) {
+            assertTrue(spool.append(document(i)));
+        }
+        spool.sync();
+    }
+
+    private static List<String> ids(List<DocumentMetadata> docs) {
+        List<String> ids = new ArrayList<>();
+        for (DocumentMetadata doc : docs) {
+            ids.add(doc.getUniqueId());
+        }
+        return ids;
+    }
+
+    private File[] segments() {
+        File[] segments = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.endsWith(".spool");
+            }
+        });
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return offsets of the records of a segment: a length and a CRC of 4 bytes each, then the payload.
+     */
+    private static List<Integer> records(File segment) throws IOException {
+        List<Integer> records = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            int position = 0;
+            while (position + 8 <= file.length()) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                records.add(position);
+                position += 8 + length;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return offset just past the last record of a segment.
+     */
+    private static int end(File segment) throws IOException {
+        List<Integer> records = records(segment);
+        int last = records.get(records.size() - 1);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            file.seek(last);
+            return last + 8 + file.readInt();
+        }
+    }
+
+    private static void overwrite(File segment, int position, byte[] bytes) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(position);
+            file.write(bytes);
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,160 @@
+package org.threeveed.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The messages found by splitting a mailbox in byte ranges must be exactly those of a scan of the whole file, as the
+ * path, the id and the checkpoint of a message all come from its offset.
+ */
+public class MboxSplitterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsMessagesOfWholeFile() throws IOException {
+        String firstSeparator = "From a@x Mon Jan 1 10:00:00 2018\n";
+        String first = "Subject: one\n\nbody\n>From quoted\n";
+        String secondSeparator = "From b@x Mon Jan 1 11:00:00 2018\r\n";
+        String second = "Subject: two\r\n\r\nbody\r\nFrom not a separator\r\n";
+        String preamble = "preamble\n\n";
+        File mbox = write(preamble + firstSeparator + first + "\n" + secondSeparator + second + "\r\n");
+
+        // a message runs from the line after its separator to the empty line before the next one
+        int secondStart = preamble.length() + firstSeparator.length() + first.length() + 1 + secondSeparator.length();
+        List<String> expected = Arrays.asList(
+                message(preamble.length() + firstSeparator.length(), first.length()),
+                message(secondStart, second.length()));
+        assertEquals(expected, scanWhole(mbox));
+    }
+
+    @Test
+    public void findsNothingWithoutSeparator() throws IOException {
+        assertEquals(new ArrayList<String>(), scanWhole(write("")));
+        assertEquals(new ArrayList<String>(), scanWhole(write("no\nseparator\nFrom inside a paragraph\n")));
+        assertEquals(new ArrayList<String>(), scanRanges(write("no\nseparator\nFrom inside a paragraph\n"), 4));
+    }
+
+    @Test
+    public void rangesOfEverySizeMatchWholeFile() throws IOException {
+        Random random = new Random(42);
+        for (String lineEnd : Arrays.asList("\n", "\r\n", null)) {
+            for (int round = 0; round < 20; round++) {
+                File mbox = write(randomMailbox(random, lineEnd));
+                List<String> whole = scanWhole(mbox);
+                for (int size = 1; size <= mbox.length() + 1; size++) {
+                    assertEquals(mbox + " in ranges of " + size, whole, scanRanges(mbox, size));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rangeEdgesAroundSeparatorsMatchWholeFile() throws IOException {
+        Random random = new Random(7);
+        for (String lineEnd : Arrays.asList("\n", "\r\n", null)) {
+            for (int round = 0; round < 20; round++) {
+                String text = randomMailbox(random, lineEnd);
+                File mbox = write(text);
+                List<String> whole = scanWhole(mbox);
+                // cut the file in two a few bytes before, at and after every separator
+                for (int separator = text.indexOf("From "); separator >= 0;
+                        separator = text.indexOf("From ", separator + 1)) {
+                    for (int cut = Math.max(0, separator - 4); cut <= Math.min(text.length(), separator + 4); cut++) {
+                        List<String> split = scanRange(mbox, 0, cut);
+                        split.addAll(scanRange(mbox, cut, mbox.length()));
+                        assertEquals(mbox + " cut at " + cut, whole, split);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param lineEnd line end of every line, or null to pick one per line.
+     */
+    private static String randomMailbox(Random random, String lineEnd) {
+        StringBuilder text = new StringBuilder();
+        if (random.nextBoolean()) {
+            text.append("junk before the first message").append(newLine(random, lineEnd));
+        }
+        int messages = 1 + random.nextInt(6);
+        for (int i = 0; i < messages; i++) {
+            text.append("From sender").append(i).append("@x Mon Jan 1 10:00:00 2018").append(newLine(random, lineEnd));
+            text.append("Subject: message ").append(i).append(newLine(random, lineEnd));
+            text.append(newLine(random, lineEnd));
+            text.append("body From inside a line").append(newLine(random, lineEnd));
+            if (random.nextBoolean()) {
+                text.append(newLine(random, lineEnd)).append(">From quoted").append(newLine(random, lineEnd));
+            }
+            if (random.nextBoolean()) {
+                text.append("From right after a text line").append(newLine(random, lineEnd));
+            }
+            for (int empty = random.nextInt(3); empty >= 0; empty--) {
+                text.append(newLine(random, lineEnd));
+            }
+        }
+        return text.toString();
+    }
+
+    private static String newLine(Random random, String lineEnd) {
+        if (lineEnd != null) {
+            return lineEnd;
+        }
+        return random.nextBoolean() ? "\n" : "\r\n";
+    }
+
+    private File write(String text) throws IOException {
+        File mbox = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(mbox)) {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+        return mbox;
+    }
+
+    private static List<String> scanWhole(File mbox) throws IOException {
+        try (MboxSplitter splitter = new MboxSplitter(new FileInputStream(mbox))) {
+            return collect(splitter);
+        }
+    }
+
+    private static List<String> scanRanges(File mbox, int size) throws IOException {
+        List<String> messages = new ArrayList<>();
+        for (long start = 0; start < mbox.length(); start += size) {
+            messages.addAll(scanRange(mbox, start, start + size));
+        }
+        return messages;
+    }
+
+    private static List<String> scanRange(File mbox, long start, long end) throws IOException {
+        try (MboxSplitter splitter = MboxSplitter.open(mbox, start, end)) {
+            return collect(splitter);
+        }
+    }
+
+    private static List<String> collect(MboxSplitter splitter) throws IOException {
+        List<String> messages = new ArrayList<>();
+        while (splitter.next()) {
+            messages.add(message(splitter.getOffset(), splitter.getLength()));
+        }
+        return messages;
+    }
+
+    private static String message(long offset, long length) {
+        return offset + "+" + length;
+    }
+}